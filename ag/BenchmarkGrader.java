@@ -0,0 +1,152 @@
+package nachos.ag;
+
+import nachos.machine.*;
+
+/**
+ * An autograder for benchmarking the kernel instead of testing it. It loads
+ * and initializes the kernel like the default autograder, but rather than
+ * calling <tt>Kernel.selfTest()</tt> and <tt>Kernel.run()</tt>, the main
+ * thread runs tasks handed to it by host threads that are not part of Nachos,
+ * such as the threads of a benchmark harness.
+ *
+ * <p>
+ * A host thread finds the autograder with <tt>waitForGrader()</tt>, and then
+ * calls <tt>execute()</tt> for each task, which blocks it until the task has
+ * run to completion in the main thread. While the main thread is waiting for a
+ * task, it blocks its host thread, so simulated time stands still between
+ * tasks.
+ */
+public class BenchmarkGrader extends AutoGrader {
+	/**
+	 * Allocate a new benchmark autograder.
+	 */
+	public BenchmarkGrader() {
+	}
+
+	/**
+	 * Wait until Nachos has booted and its main thread is ready to run tasks.
+	 * Must not be called by a Nachos thread.
+	 *
+	 * @return the autograder.
+	 */
+	public static BenchmarkGrader waitForGrader() {
+		Lib.assertTrue(!TCB.isNachosThread());
+
+		synchronized (BenchmarkGrader.class) {
+			while (grader == null) {
+				try {
+					BenchmarkGrader.class.wait();
+				}
+				catch (InterruptedException e) {
+				}
+			}
+
+			return grader;
+		}
+	}
+
+	/**
+	 * Run a task in the main thread of the kernel, and wait for it to finish.
+	 * The task may fork, block and join kernel threads, and when it returns
+	 * the main thread waits for the next task. Any exception the task throws
+	 * is rethrown here. Must not be called by a Nachos thread.
+	 *
+	 * @param task the task to run.
+	 */
+	public synchronized void execute(Runnable task) {
+		Lib.assertTrue(!TCB.isNachosThread());
+
+		while (this.task != null)
+			waitForTask();
+
+		this.task = task;
+		notifyAll();
+
+		while (this.task == task)
+			waitForTask();
+
+		Throwable failure = this.failure;
+		this.failure = null;
+		notifyAll();
+
+		if (failure instanceof RuntimeException)
+			throw (RuntimeException) failure;
+		else if (failure instanceof Error)
+			throw (Error) failure;
+	}
+
+	/**
+	 * Schedule an interrupt one kernel tick in the future and advance the
+	 * simulated clock to it, <i>count</i> times. This measures the cost of
+	 * scheduling and dispatching a device interrupt. Must be called by a task.
+	 *
+	 * @param count the number of interrupts to schedule.
+	 */
+	public void tickInterrupts(int count) {
+		Lib.assertTrue(TCB.isNachosThread());
+
+		if (tickHandle == -1) {
+			tickHandle = privilege.interrupt.register("benchmark",
+					new Runnable() {
+						public void run() {
+							numTicked++;
+						}
+					});
+		}
+
+		for (int i = 0; i < count; i++) {
+			privilege.interrupt.schedule(tickHandle, Stats.KernelTick);
+			privilege.interrupt.tick(true);
+		}
+	}
+
+	void run() {
+		synchronized (BenchmarkGrader.class) {
+			grader = this;
+			BenchmarkGrader.class.notifyAll();
+		}
+
+		while (true) {
+			Runnable task;
+
+			synchronized (this) {
+				while (this.task == null || failure != null)
+					waitForTask();
+
+				task = this.task;
+			}
+
+			Throwable failure = null;
+			try {
+				task.run();
+			}
+			catch (Throwable e) {
+				failure = e;
+			}
+
+			synchronized (this) {
+				this.failure = failure;
+				this.task = null;
+				notifyAll();
+			}
+		}
+	}
+
+	private void waitForTask() {
+		try {
+			wait();
+		}
+		catch (InterruptedException e) {
+		}
+	}
+
+	private static BenchmarkGrader grader = null;
+
+	private Runnable task = null;
+
+	private Throwable failure = null;
+
+	private int tickHandle = -1;
+
+	private long numTicked = 0;
+}
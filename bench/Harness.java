@@ -0,0 +1,55 @@
+package nachos.bench;
+
+import nachos.ag.*;
+import nachos.machine.*;
+
+/**
+ * Boots the headless Nachos machine that the benchmarks run on. Nachos can
+ * only be booted once per JVM, so all the benchmarks in a JMH fork share one
+ * machine, configured by <tt>nachos.conf</tt> in the current directory and
+ * graded by a <tt>BenchmarkGrader</tt>.
+ *
+ * <p>
+ * The machine runs in a daemon host thread, and every TCB it creates inherits
+ * that, so JMH can end a fork without shutting Nachos down.
+ *
+ * <p>
+ * Once the machine has booted, the harness removes the Nachos security
+ * manager, so that JMH can serialize its results. The timings therefore leave
+ * out the cost of its permission checks.
+ */
+public class Harness {
+	private Harness() {
+	}
+
+	/**
+	 * Boot the machine if this JVM has not booted it yet, and wait for its
+	 * main thread to be ready to run tasks.
+	 *
+	 * @return the autograder that runs tasks in the main thread.
+	 */
+	public static synchronized BenchmarkGrader boot() {
+		if (grader == null) {
+			Thread machine = new Thread(new Runnable() {
+				public void run() {
+					Machine.main(new String[] { "--",
+							"nachos.ag.BenchmarkGrader" });
+				}
+			}, "nachos");
+
+			machine.setDaemon(true);
+			machine.start();
+
+			grader = BenchmarkGrader.waitForGrader();
+
+			// JMH serializes its results, which makes the JDK define
+			// accessor classes in class loaders of their own, and Nachos
+			// forbids creating class loaders
+			System.setSecurityManager(null);
+		}
+
+		return grader;
+	}
+
+	private static BenchmarkGrader grader = null;
+}
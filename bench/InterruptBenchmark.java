@@ -0,0 +1,59 @@
+package nachos.bench;
+
+import nachos.ag.*;
+import nachos.machine.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks the simulated interrupt controller: advancing the clock by one
+ * tick, and scheduling and dispatching a device interrupt.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class InterruptBenchmark {
+	/**
+	 * Boot the machine.
+	 */
+	@Setup
+	public void boot() {
+		grader = Harness.boot();
+	}
+
+	/**
+	 * Enable interrupts, which advances the clock by a kernel tick and checks
+	 * whether any interrupt is due.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(ticks)
+	public void tick() {
+		grader.execute(new Runnable() {
+			public void run() {
+				for (int i = 0; i < ticks; i++) {
+					Machine.interrupt().disable();
+					Machine.interrupt().enable();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Schedule an interrupt for the next tick, and tick to dispatch it.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(ticks)
+	public void scheduleAndDispatch() {
+		grader.execute(new Runnable() {
+			public void run() {
+				grader.tickInterrupts(ticks);
+			}
+		});
+	}
+
+	private static final int ticks = 10000;
+
+	private BenchmarkGrader grader;
+}
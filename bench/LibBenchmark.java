@@ -0,0 +1,76 @@
+package nachos.bench;
+
+import nachos.machine.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks the byte conversions in <tt>Lib</tt>, which the processor and
+ * the COFF loader use for every word they move between memory and Java. These
+ * run on the host thread and do not need a machine.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class LibBenchmark {
+	/**
+	 * Fill the buffer with a known pattern.
+	 */
+	@Setup
+	public void fill() {
+		for (int i = 0; i < buffer.length; i++)
+			buffer[i] = (byte) ('a' + i % 26);
+	}
+
+	/**
+	 * Read every word of the buffer.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(words)
+	public int bytesToInt() {
+		int sum = 0;
+		for (int i = 0; i < words; i++)
+			sum += Lib.bytesToInt(buffer, i * 4);
+
+		return sum;
+	}
+
+	/**
+	 * Write every word of the buffer.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(words)
+	public byte[] bytesFromInt() {
+		for (int i = 0; i < words; i++)
+			Lib.bytesFromInt(buffer, i * 4, i);
+
+		return buffer;
+	}
+
+	/**
+	 * Read every halfword of the buffer, as <tt>lh</tt> and <tt>lhu</tt> do.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(words * 2)
+	public int bytesToShort() {
+		int sum = 0;
+		for (int i = 0; i < words * 2; i++)
+			sum += Lib.bytesToInt(buffer, i * 2, 2);
+
+		return sum;
+	}
+
+	/**
+	 * Read the buffer as one string, as the kernel does for syscall arguments.
+	 */
+	@Benchmark
+	public String bytesToString() {
+		return Lib.bytesToString(buffer, 0, buffer.length);
+	}
+
+	private static final int words = 256;
+
+	private byte[] buffer = new byte[words * 4];
+}
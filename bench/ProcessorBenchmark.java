@@ -0,0 +1,91 @@
+package nachos.bench;
+
+import nachos.ag.*;
+import nachos.machine.*;
+import nachos.userprog.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks running MIPS programs: how long the processor takes to run the
+ * <tt>matmult</tt> and <tt>sort</tt> test programs to completion, and how long
+ * a system call takes, measured by <tt>sysloop</tt>. The programs must have
+ * been built with <tt>make test</tt>.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class ProcessorBenchmark {
+	/**
+	 * Boot the machine, and count this benchmark as a process, so that the
+	 * kernel does not halt the machine when the last program exits.
+	 */
+	@Setup
+	public void boot() {
+		grader = Harness.boot();
+
+		grader.execute(new Runnable() {
+			public void run() {
+				if (!registered) {
+					UserKernel.numproLock.acquire();
+					UserKernel.numProcess++;
+					UserKernel.numproLock.release();
+
+					registered = true;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Run <tt>matmult.coff</tt>.
+	 */
+	@Benchmark
+	public void matmult() {
+		runProgram("matmult.coff", new String[] { "matmult.coff" });
+	}
+
+	/**
+	 * Run <tt>sort.coff</tt>.
+	 */
+	@Benchmark
+	public void sort() {
+		runProgram("sort.coff", new String[] { "sort.coff" });
+	}
+
+	/**
+	 * Run <tt>sysloop.coff</tt>, which makes <tt>syscalls</tt> system calls.
+	 * The time to load the program is spread across all the calls.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(syscalls)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void syscall() {
+		runProgram("sysloop.coff", new String[] { "sysloop.coff",
+				"" + syscalls });
+	}
+
+	/**
+	 * Run a program in a new process, and wait for it to exit.
+	 */
+	private void runProgram(final String name, final String[] args) {
+		grader.execute(new Runnable() {
+			public void run() {
+				UserProcess process = UserProcess.newUserProcess();
+				Lib.assertTrue(process.execute(name, args), "could not run "
+						+ name);
+
+				UserKernel.threadMap.get(process.PID).join();
+			}
+		});
+	}
+
+	private static final int syscalls = 10000;
+
+	/** Whether the benchmark has been counted as a process in this JVM. */
+	private static boolean registered = false;
+
+	private BenchmarkGrader grader;
+}
@@ -0,0 +1,171 @@
+package nachos.bench;
+
+import nachos.ag.*;
+import nachos.threads.*;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks context switches between kernel threads, and handing control
+ * from one thread to another through each of the synchronization primitives.
+ *
+ * <p>
+ * Every benchmark forks a partner for the main thread, and the two threads
+ * hand control back and forth <tt>roundTrips</tt> times, so each operation is
+ * one round trip, or two context switches. Forking and joining the partner is
+ * included, but spread across all the round trips.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class ThreadBenchmark {
+	/**
+	 * Boot the machine.
+	 */
+	@Setup
+	public void boot() {
+		grader = Harness.boot();
+	}
+
+	/**
+	 * Two threads calling <tt>KThread.yield()</tt>.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(roundTrips)
+	public void yield() {
+		grader.execute(new Runnable() {
+			public void run() {
+				Runnable yields = new Runnable() {
+					public void run() {
+						for (int i = 0; i < roundTrips; i++)
+							KThread.yield();
+					}
+				};
+
+				pingPong(yields, yields);
+			}
+		});
+	}
+
+	/**
+	 * Two threads signalling each other with a pair of semaphores.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(roundTrips)
+	public void semaphore() {
+		grader.execute(new Runnable() {
+			public void run() {
+				final Semaphore ping = new Semaphore(0);
+				final Semaphore pong = new Semaphore(0);
+
+				pingPong(new Runnable() {
+					public void run() {
+						for (int i = 0; i < roundTrips; i++) {
+							ping.V();
+							pong.P();
+						}
+					}
+				}, new Runnable() {
+					public void run() {
+						for (int i = 0; i < roundTrips; i++) {
+							ping.P();
+							pong.V();
+						}
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Two threads contending for a lock, so that every release hands it to the
+	 * other thread.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(roundTrips)
+	public void lock() {
+		grader.execute(new Runnable() {
+			public void run() {
+				final Lock lock = new Lock();
+
+				Runnable contend = new Runnable() {
+					public void run() {
+						for (int i = 0; i < roundTrips; i++) {
+							lock.acquire();
+							KThread.yield();
+							lock.release();
+						}
+					}
+				};
+
+				pingPong(contend, contend);
+			}
+		});
+	}
+
+	/**
+	 * Two threads taking turns, each sleeping on a condition variable until
+	 * the other wakes it.
+	 */
+	@Benchmark
+	@OperationsPerInvocation(roundTrips)
+	public void condition2() {
+		grader.execute(new Runnable() {
+			public void run() {
+				final Lock lock = new Lock();
+				final Condition2 turnChanged = new Condition2(lock);
+				final int[] turn = new int[] { 0 };
+
+				pingPong(new Turns(lock, turnChanged, turn, 0), new Turns(
+						lock, turnChanged, turn, 1));
+			}
+		});
+	}
+
+	/**
+	 * Run <i>ping</i> in the calling thread and <i>pong</i> in a new thread,
+	 * and wait for both to finish.
+	 */
+	private static void pingPong(Runnable ping, Runnable pong) {
+		KThread partner = new KThread(pong).setName("pong");
+		partner.fork();
+
+		ping.run();
+		partner.join();
+	}
+
+	private static class Turns implements Runnable {
+		Turns(Lock lock, Condition2 turnChanged, int[] turn, int me) {
+			this.lock = lock;
+			this.turnChanged = turnChanged;
+			this.turn = turn;
+			this.me = me;
+		}
+
+		public void run() {
+			for (int i = 0; i < roundTrips; i++) {
+				lock.acquire();
+				while (turn[0] != me)
+					turnChanged.sleep();
+
+				turn[0] = 1 - me;
+				turnChanged.wake();
+				lock.release();
+			}
+		}
+
+		private Lock lock;
+
+		private Condition2 turnChanged;
+
+		private int[] turn;
+
+		private int me;
+	}
+
+	private static final int roundTrips = 1000;
+
+	private BenchmarkGrader grader;
+}
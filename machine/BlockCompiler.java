@@ -0,0 +1,1089 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
+import java.security.PrivilegedAction;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Translates hot basic blocks of MIPS code into JVM classes, so that HotSpot
+ * can compile them to host code. The processor uses a <tt>BlockCompiler</tt>
+ * only if the <tt>Processor.jit</tt> key is set.
+ * 
+ * <p>
+ * A block is a run of instructions in one page of code, ending with the delay
+ * slot of a branch. Each block becomes one class with a single method, which
+ * keeps the registers in the processor's register array and inlines the
+ * arithmetic, logic and branch instructions. Everything that touches the rest
+ * of the machine goes through the processor, exactly as the interpreter would
+ * do it: loads and stores still go through <tt>readMem()</tt> and
+ * <tt>writeMem()</tt>, and delayed loads still complete one instruction
+ * later. Instructions the compiler does not inline, such as <tt>div</tt> or
+ * <tt>lwl</tt>, are handed to the interpreter one at a time. Before anything
+ * that can trap, the block writes back the PC and the number of instructions
+ * it has retired, so a trap leaves the processor in the same state as it
+ * would after interpreting the block.
+ * 
+ * <p>
+ * The first instruction of a block is fetched through <tt>translate()</tt>,
+ * which leaves the page of code in the processor's cache of recent
+ * translations. Until the block touches memory, nothing can evict it or
+ * change the code, so every later fetch would hit that cache, whose only
+ * effects are to count a TLB hit and set the used bit again. The block counts
+ * those hits instead of repeating the fetches. The first instruction after a
+ * load, a store or an interpreted instruction is fetched through
+ * <tt>translate()</tt> again, and checked against the word the block was
+ * compiled from. The statistics, the performance counters, the state of the
+ * TLB and the simulated time therefore come out the same with or without the
+ * compiler.
+ * 
+ * <p>
+ * The generated classes are defined as hidden classes in this package, so
+ * they need no class loader, and can be unloaded once they are no longer
+ * used. Hidden classes were added in Java 15, so <tt>Processor.jit</tt>
+ * requires Java 15 or later.
+ * 
+ * <p>
+ * The compiler falls well short of the speedup a JIT usually brings. Each
+ * block still keeps the statistics and the simulated clock exactly, checks
+ * its code on entry, and runs its loads and stores through the processor, so
+ * running <tt>sort</tt> and <tt>matmult</tt> over and over is only about 1.5
+ * times as fast. A single short run is slower, because it ends before the
+ * time spent generating and loading classes pays off. This is why
+ * <tt>Processor.jit</tt> is off by default.
+ */
+final class BlockCompiler {
+	/**
+	 * Allocate a new block compiler, and find a way to define classes on the
+	 * running JVM.
+	 * 
+	 * @param privilege encapsulates privileged access to the Nachos machine.
+	 */
+	BlockCompiler(Privilege privilege) {
+		this.privilege = privilege;
+
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				findDefiner();
+			}
+		});
+
+		Lib.assertTrue(define != null, "Processor.jit requires Java 15 or later");
+	}
+
+	/**
+	 * Find <tt>Lookup.defineHiddenClass()</tt>, which defines a class from a
+	 * class file in this package, without a class loader of its own. It is
+	 * looked up at run time so that Nachos still builds for older JVMs, and
+	 * called through a method handle because reflection may need to create a
+	 * class loader, which the security manager forbids.
+	 */
+	private void findDefiner() {
+		lookup = MethodHandles.lookup();
+
+		try {
+			Class<?> option = Class
+					.forName("java.lang.invoke.MethodHandles$Lookup$ClassOption");
+			hiddenClassOptions = Array.newInstance(option, 0);
+
+			define = lookup.findVirtual(
+					MethodHandles.Lookup.class,
+					"defineHiddenClass",
+					MethodType.methodType(MethodHandles.Lookup.class,
+							byte[].class, boolean.class,
+							hiddenClassOptions.getClass())).asFixedArity();
+		}
+		catch (ClassNotFoundException e) {
+			define = null;
+		}
+		catch (NoSuchMethodException e) {
+			define = null;
+		}
+		catch (IllegalAccessException e) {
+			define = null;
+		}
+	}
+
+	/**
+	 * A compiled basic block.
+	 */
+	abstract static class Block {
+		/**
+		 * Run the block on the specified processor. The PC must be at the
+		 * start of the block, the next PC must follow it, and no interrupt
+		 * may become due before the block ends.
+		 * 
+		 * @param processor the processor to run on.
+		 * @param registers the processor's registers.
+		 */
+		abstract void run(Processor processor, int[] registers)
+				throws Processor.MipsException;
+
+		/** The virtual address the block was compiled for. */
+		int vaddr;
+
+		/** The instruction words the block was compiled from. */
+		int[] words;
+	}
+
+	/**
+	 * Compile the basic block starting at the specified word of a page. Every
+	 * word from <i>index</i> up to <i>end</i> must already be in the decode
+	 * cache.
+	 * 
+	 * <p>
+	 * The code of a block only depends on its virtual address and its
+	 * instruction words, so blocks are kept across page loads, and shared by
+	 * every page and processor that runs the same code at the same address.
+	 * A program that is run over and over is only compiled once.
+	 * 
+	 * @param page the decoded page.
+	 * @param index the word the block starts at.
+	 * @param end the word before which the block must end.
+	 * @param vaddr the virtual address of the first instruction.
+	 * @return the compiled block, or <tt>null</tt> if the block would be empty
+	 * or too long.
+	 */
+	Block compile(Processor.DecodedPage page, int index, int end, int vaddr) {
+		int length = 0;
+		for (int i = index; i < end; i++) {
+			if (endsBlock(page.info[i]))
+				break;
+
+			if ((page.info[i].flags & Processor.Mips.BRANCH) != 0) {
+				// the delay slot goes with the branch
+				if (i + 1 < end && !endsBlock(page.info[i + 1])
+						&& (page.info[i + 1].flags & Processor.Mips.BRANCH) == 0)
+					length += 2;
+				break;
+			}
+
+			length++;
+		}
+
+		if (length == 0)
+			return null;
+
+		Key key = new Key(vaddr, Arrays.copyOfRange(page.word, index, index
+				+ length));
+		if (blocks.containsKey(key))
+			return blocks.get(key);
+
+		Block block = null;
+		byte[] bytes = generate(page, index, length, vaddr);
+		if (bytes != null) {
+			block = instantiate(bytes);
+			block.vaddr = vaddr;
+			block.words = key.words;
+		}
+
+		blocks.put(key, block);
+		return block;
+	}
+
+	/**
+	 * The virtual address and instruction words a block was compiled from.
+	 */
+	private static final class Key {
+		Key(int vaddr, int[] words) {
+			this.vaddr = vaddr;
+			this.words = words;
+			hash = vaddr * 31 + Arrays.hashCode(words);
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+
+			Key key = (Key) o;
+			return vaddr == key.vaddr && Arrays.equals(words, key.words);
+		}
+
+		public int hashCode() {
+			return hash;
+		}
+
+		private int vaddr, hash;
+
+		private int[] words;
+	}
+
+	/**
+	 * Test whether an instruction must be left to the interpreter and end the
+	 * block before it.
+	 */
+	private static boolean endsBlock(Processor.Mips info) {
+		return info.operation == Processor.Mips.SYSCALL
+				|| info.operation == Processor.Mips.UNIMPL
+				|| info.operation == Processor.Mips.INVALID;
+	}
+
+	private Block instantiate(final byte[] bytes) {
+		return privilege.doPrivileged(new PrivilegedAction<Block>() {
+			public Block run() {
+				try {
+					MethodHandles.Lookup block = (MethodHandles.Lookup) define
+							.invoke(lookup, bytes, false, hiddenClassOptions);
+
+					return (Block) block.findConstructor(block.lookupClass(),
+							MethodType.methodType(void.class)).invoke();
+				}
+				catch (Throwable e) {
+					Lib.assertNotReached("could not define a compiled block: "
+							+ e);
+					return null;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Generate the class file for a block.
+	 * 
+	 * @return the class file, or <tt>null</tt> if the method would be too
+	 * large for HotSpot to compile.
+	 */
+	private byte[] generate(Processor.DecodedPage page, int index, int length,
+			int vaddr) {
+		ClassFile cf = new ClassFile();
+		Code code = new Code(cf);
+
+		// locals: 1 = processor, 2 = registers, 3 = result, 4 = branch
+		// target, 5 and 6 = 64-bit product
+		unretired = unbranched = unfetched = 0;
+		loadState = loadUnknown;
+		inDelaySlot = false;
+		touchedMemory = false;
+
+		for (int i = 0; i < length; i++) {
+			int k = index + i;
+			int pc = vaddr + i * 4;
+
+			if (i > 0 && !touchedMemory) {
+				unfetched++;
+			}
+			else if (i > 0) {
+				// the processor takes over if the code has changed
+				Lib.assertTrue(unfetched == 0);
+
+				int same = code.newLabel();
+				code.aload(1);
+				code.push(pc);
+				code.push(page.word[k]);
+				if (inDelaySlot)
+					code.iload(4);
+				else
+					code.push(pc + 4);
+				code.push(unretired);
+				code.push(unbranched);
+				code.invoke(fetch, "(IIIII)Z");
+				code.jump(IFNE, same);
+				code.op(RETURN);
+				code.mark(same);
+
+				touchedMemory = false;
+			}
+
+			translate(code, page, k, pc, i * 4);
+
+			if ((page.info[k].flags & Processor.Mips.BRANCH) != 0)
+				inDelaySlot = true;
+		}
+
+		// a block that ends with a delay slot continues at the branch target
+		flushPC(code, inDelaySlot ? -1 : vaddr + length * 4);
+		retire(code);
+		code.op(RETURN);
+
+		if (code.length() > maxMethodLength)
+			return null;
+
+		return cf.toBytes(code);
+	}
+
+	/**
+	 * Emit the code for one instruction, mirroring
+	 * <tt>Instruction.execute()</tt> and <tt>Instruction.writeBack()</tt>.
+	 */
+	private void translate(Code code, Processor.DecodedPage page, int k,
+			int pc, int offset) {
+		Processor.Mips info = page.info[k];
+		int packed = page.fields[k];
+		int word = page.word[k];
+
+		int rs = packed & 0x1F;
+		int rt = (packed >>> 5) & 0x1F;
+		int sh = (packed >>> 15) & 0x1F;
+		int size = (packed >>> 20) & 0x7;
+		int dstReg = ((packed >>> 23) & 0x3F) - 1;
+
+		int flags = info.flags;
+		boolean unsigned = (flags & Processor.Mips.UNSIGNED) != 0;
+		int imm = unsigned ? page.imm[k] & 0xFFFF : page.imm[k];
+		boolean writesDst = (flags & Processor.Mips.DST) != 0 && dstReg != 0;
+
+		switch (info.operation) {
+		case Processor.Mips.ADD:
+		case Processor.Mips.SUB:
+			src1(code, flags, rs, sh);
+			src2(code, flags, rt, imm);
+			code.op(info.operation == Processor.Mips.ADD ? IADD : ISUB);
+			code.istore(3);
+
+			if ((flags & Processor.Mips.OVERFLOW) != 0)
+				checkOverflow(code, pc);
+
+			finishLoad(code);
+			writeResult(code, writesDst, dstReg);
+			break;
+
+		case Processor.Mips.SLL:
+		case Processor.Mips.SRA:
+		case Processor.Mips.SRL:
+			// shifts happen on the 64-bit source
+			src2(code, flags, rt, imm);
+			widen(code, unsigned);
+			src1(code, flags, rs, sh);
+			code.push(0x1F);
+			code.op(IAND);
+			code.op(info.operation == Processor.Mips.SLL ? LSHL
+					: info.operation == Processor.Mips.SRA ? LSHR : LUSHR);
+			code.op(L2I);
+			code.istore(3);
+
+			finishLoad(code);
+			writeResult(code, writesDst, dstReg);
+			break;
+
+		case Processor.Mips.SLT:
+			// the sign of the 64-bit comparison
+			src1(code, flags, rs, sh);
+			widen(code, unsigned);
+			src2(code, flags, rt, imm);
+			widen(code, unsigned);
+			code.op(LCMP);
+			code.push(31);
+			code.op(IUSHR);
+			code.istore(3);
+
+			finishLoad(code);
+			writeResult(code, writesDst, dstReg);
+			break;
+
+		case Processor.Mips.AND:
+		case Processor.Mips.OR:
+		case Processor.Mips.XOR:
+		case Processor.Mips.NOR:
+			src1(code, flags, rs, sh);
+			src2(code, flags, rt, imm);
+			switch (info.operation) {
+			case Processor.Mips.AND:
+				code.op(IAND);
+				break;
+			case Processor.Mips.OR:
+				code.op(IOR);
+				break;
+			case Processor.Mips.XOR:
+				code.op(IXOR);
+				break;
+			default:
+				code.op(IOR);
+				code.push(-1);
+				code.op(IXOR);
+				break;
+			}
+			code.istore(3);
+
+			finishLoad(code);
+			writeResult(code, writesDst, dstReg);
+			break;
+
+		case Processor.Mips.LUI:
+			code.push(imm << 16);
+			code.istore(3);
+
+			finishLoad(code);
+			writeResult(code, writesDst, dstReg);
+			break;
+
+		case Processor.Mips.MFLO:
+		case Processor.Mips.MFHI:
+			code.loadRegister(info.operation == Processor.Mips.MFLO ? Processor.regLo
+					: Processor.regHi);
+			code.istore(3);
+
+			finishLoad(code);
+			writeResult(code, writesDst, dstReg);
+			break;
+
+		case Processor.Mips.MTLO:
+		case Processor.Mips.MTHI:
+			code.aload(2);
+			code.push(info.operation == Processor.Mips.MTLO ? Processor.regLo
+					: Processor.regHi);
+			code.loadRegister(rs);
+			code.op(IASTORE);
+
+			finishLoad(code);
+			break;
+
+		case Processor.Mips.MULT:
+			code.loadRegister(rs);
+			widen(code, unsigned);
+			code.loadRegister(rt);
+			widen(code, unsigned);
+			code.op(LMUL);
+			code.lstore(5);
+
+			code.aload(2);
+			code.push(Processor.regLo);
+			code.lload(5);
+			code.op(L2I);
+			code.op(IASTORE);
+
+			code.aload(2);
+			code.push(Processor.regHi);
+			code.lload(5);
+			code.push(32);
+			code.op(LUSHR);
+			code.op(L2I);
+			code.op(IASTORE);
+
+			finishLoad(code);
+			break;
+
+		case Processor.Mips.LOAD:
+			flushPC(code, pc);
+			retire(code);
+
+			code.aload(1);
+			code.loadRegister(rs);
+			code.push(imm);
+			code.op(IADD);
+			code.push(size);
+			code.push(unsigned ? 1 : 0);
+			code.invoke(load, "(IIZ)I");
+			code.istore(3);
+
+			code.aload(1);
+			code.push(dstReg);
+			code.iload(3);
+			code.invoke(delayedLoad, "(II)V");
+
+			unretired++;
+			loadState = loadPending;
+			touchedMemory = true;
+			return;
+
+		case Processor.Mips.STORE:
+			flushPC(code, pc);
+			retire(code);
+
+			code.aload(1);
+			code.loadRegister(rs);
+			code.push(imm);
+			code.op(IADD);
+			code.push(size);
+			code.loadRegister(rt);
+			code.invoke(store, "(III)V");
+
+			finishLoad(code);
+			touchedMemory = true;
+			break;
+
+		case Processor.Mips.BEQ:
+		case Processor.Mips.BNE:
+		case Processor.Mips.BLEZ:
+		case Processor.Mips.BGTZ:
+		case Processor.Mips.BLTZ:
+		case Processor.Mips.BGEZ:
+		case Processor.Mips.JUMP:
+			branch(code, info, word, rs, rt, page.imm[k], pc);
+
+			finishLoad(code);
+
+			if ((flags & Processor.Mips.LINK) != 0 && writesDst) {
+				code.aload(2);
+				code.push(dstReg);
+				code.push(pc + 8);
+				code.op(IASTORE);
+			}
+
+			unbranched++;
+			break;
+
+		default:
+			// leave the rest to the interpreter
+			flushPC(code, pc);
+			retire(code);
+
+			code.aload(1);
+			code.push(offset);
+			code.push(word);
+			code.invoke(interpret, "(II)V");
+
+			loadState = loadUnknown;
+			touchedMemory = true;
+			return;
+		}
+
+		unretired++;
+		loadState = loadNone;
+	}
+
+	/**
+	 * Emit the computation of the branch target into local 4: the jump
+	 * target if the branch is taken, and the instruction after the delay slot
+	 * otherwise.
+	 */
+	private void branch(Code code, Processor.Mips info, int word, int rs,
+			int rt, int imm, int pc) {
+		int nextPC = pc + 4;
+
+		if (info.operation == Processor.Mips.JUMP) {
+			if (info.format == Processor.Mips.RFMT)
+				code.loadRegister(rs);
+			else
+				code.push((nextPC & 0xF0000000) | ((word & 0x3FFFFFF) << 2));
+			code.istore(4);
+			return;
+		}
+
+		int taken = code.newLabel(), done = code.newLabel();
+
+		code.loadRegister(rs);
+		switch (info.operation) {
+		case Processor.Mips.BEQ:
+			code.loadRegister(rt);
+			code.jump(IF_ICMPEQ, taken);
+			break;
+		case Processor.Mips.BNE:
+			code.loadRegister(rt);
+			code.jump(IF_ICMPNE, taken);
+			break;
+		case Processor.Mips.BLEZ:
+			code.jump(IFLE, taken);
+			break;
+		case Processor.Mips.BGTZ:
+			code.jump(IFGT, taken);
+			break;
+		case Processor.Mips.BLTZ:
+			code.jump(IFLT, taken);
+			break;
+		default:
+			code.jump(IFGE, taken);
+			break;
+		}
+
+		code.push(pc + 8);
+		code.istore(4);
+		code.jump(GOTO, done);
+
+		code.mark(taken);
+		code.push(nextPC + (imm << 2));
+		code.istore(4);
+
+		code.mark(done);
+	}
+
+	/**
+	 * Emit the overflow check of <tt>Instruction.writeBack()</tt> on the
+	 * result in local 3, which compares <tt>Lib.test(dst, 31)</tt> with
+	 * <tt>Lib.test(dst, 32)</tt>.
+	 */
+	private void checkOverflow(Code code, int pc) {
+		int lowClear = code.newLabel(), trap = code.newLabel(), ok = code
+				.newLabel();
+
+		code.iload(3);
+		code.push(31);
+		code.op(IAND);
+		code.jump(IFEQ, lowClear);
+
+		code.iload(3);
+		code.push(32);
+		code.op(IAND);
+		code.jump(IFEQ, trap);
+		code.jump(GOTO, ok);
+
+		code.mark(lowClear);
+		code.iload(3);
+		code.push(32);
+		code.op(IAND);
+		code.jump(IFEQ, ok);
+
+		code.mark(trap);
+		flushPC(code, pc);
+		retire(code, false);
+		code.aload(1);
+		code.invoke(overflow, "()Lnachos/machine/Processor$MipsException;");
+		code.op(ATHROW);
+
+		code.mark(ok);
+	}
+
+	/** Push the first source operand as an <tt>int</tt>. */
+	private static void src1(Code code, int flags, int rs, int sh) {
+		if ((flags & Processor.Mips.SRC1SH) != 0)
+			code.push(sh);
+		else
+			code.loadRegister(rs);
+	}
+
+	/** Push the second source operand as an <tt>int</tt>. */
+	private static void src2(Code code, int flags, int rt, int imm) {
+		if ((flags & Processor.Mips.SRC2IMM) != 0)
+			code.push(imm);
+		else
+			code.loadRegister(rt);
+	}
+
+	/** Widen the <tt>int</tt> on the stack, with or without its sign. */
+	private static void widen(Code code, boolean unsigned) {
+		code.op(I2L);
+		if (unsigned) {
+			code.push(32);
+			code.op(LSHL);
+			code.push(32);
+			code.op(LUSHR);
+		}
+	}
+
+	private void writeResult(Code code, boolean writesDst, int dstReg) {
+		if (!writesDst)
+			return;
+
+		code.aload(2);
+		code.push(dstReg);
+		code.iload(3);
+		code.op(IASTORE);
+	}
+
+	/** Complete the delayed load in progress, if there might be one. */
+	private void finishLoad(Code code) {
+		if (loadState == loadNone)
+			return;
+
+		code.aload(1);
+		code.invoke(finishLoad, "()V");
+	}
+
+	/**
+	 * Emit code that stores the PC and the next PC. In a delay slot, the next
+	 * PC is the branch target in local 4. At the end of a block that ends
+	 * with a branch, pass -1 to jump to the branch target.
+	 */
+	private void flushPC(Code code, int pc) {
+		code.aload(2);
+		code.push(Processor.regPC);
+		if (pc == -1)
+			code.iload(4);
+		else
+			code.push(pc);
+		code.op(IASTORE);
+
+		code.aload(2);
+		code.push(Processor.regNextPC);
+		if (pc == -1) {
+			code.iload(4);
+			code.push(4);
+			code.op(IADD);
+		}
+		else if (inDelaySlot) {
+			code.iload(4);
+		}
+		else {
+			code.push(pc + 4);
+		}
+		code.op(IASTORE);
+	}
+
+	/** Emit code that retires the instructions run since the last call. */
+	private void retire(Code code) {
+		retire(code, true);
+	}
+
+	/**
+	 * Emit code that retires the instructions run since the last call. Pass
+	 * <tt>false</tt> on a path that leaves the block, to go on counting on
+	 * the others.
+	 */
+	private void retire(Code code, boolean reset) {
+		if (unretired == 0 && unbranched == 0 && unfetched == 0)
+			return;
+
+		code.aload(1);
+		code.push(unretired);
+		code.push(unbranched);
+		code.push(unfetched);
+		code.invoke(retire, "(III)V");
+
+		if (reset)
+			unretired = unbranched = unfetched = 0;
+	}
+
+	/**
+	 * Instructions, branches and cached fetches retired since the last call
+	 * to retire.
+	 */
+	private int unretired, unbranched, unfetched;
+
+	/**
+	 * Whether the last instruction might have changed memory or the cache of
+	 * recent translations, so the next one must be fetched.
+	 */
+	private boolean touchedMemory;
+
+	/** Whether a delayed load might be in progress. */
+	private int loadState;
+
+	private static final int loadNone = 0, loadPending = 1, loadUnknown = 2;
+
+	/** Whether the instruction being translated is in a delay slot. */
+	private boolean inDelaySlot;
+
+	private Privilege privilege;
+
+	/**
+	 * The blocks compiled most recently, including those too long to compile,
+	 * in order of use. The least recently used block is dropped once there
+	 * are too many, so the classes of code that is no longer run can be
+	 * unloaded, while the hot blocks stay compiled.
+	 */
+	private LinkedHashMap<Key, Block> blocks = new LinkedHashMap<Key, Block>(
+			16, 0.75f, true) {
+		protected boolean removeEldestEntry(Map.Entry<Key, Block> eldest) {
+			return size() > maxCachedBlocks;
+		}
+	};
+
+	/** The number of blocks to keep. */
+	private static final int maxCachedBlocks = 4096;
+
+	private MethodHandles.Lookup lookup;
+
+	/**
+	 * <tt>Lookup.defineHiddenClass()</tt>, or <tt>null</tt> if the JVM has no
+	 * hidden classes.
+	 */
+	private MethodHandle define;
+
+	/** An empty array of hidden class options. */
+	private Object hiddenClassOptions;
+
+	/** HotSpot does not compile methods longer than this. */
+	private static final int maxMethodLength = 8000;
+
+	private static final String processorClass = "nachos/machine/Processor";
+
+	private static final String blockClass = "nachos/machine/BlockCompiler$Block";
+
+	/** The processor methods the blocks call. */
+	private static final String fetch = "blockFetch", load = "blockLoad",
+			store = "blockStore", delayedLoad = "blockDelayedLoad",
+			finishLoad = "blockFinishLoad", retire = "blockRetire",
+			interpret = "blockInterpret", overflow = "blockOverflow";
+
+	private static final int ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11,
+			LDC_W = 0x13, ILOAD = 0x15, LLOAD = 0x16, ALOAD = 0x19,
+			IALOAD = 0x2e, ISTORE = 0x36, LSTORE = 0x37, IASTORE = 0x4f,
+			IADD = 0x60, ISUB = 0x64, LMUL = 0x69, LSHL = 0x79, LSHR = 0x7b,
+			IUSHR = 0x7c, LUSHR = 0x7d, IAND = 0x7e, IOR = 0x80, IXOR = 0x82,
+			I2L = 0x85, L2I = 0x88, LCMP = 0x94, IFEQ = 0x99, IFNE = 0x9a,
+			IFLT = 0x9b, IFGE = 0x9c, IFGT = 0x9d, IFLE = 0x9e,
+			IF_ICMPEQ = 0x9f, IF_ICMPNE = 0xa0, GOTO = 0xa7, RETURN = 0xb1,
+			INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7, ATHROW = 0xbf;
+
+	/**
+	 * The constant pool and layout of a generated class. Version 49 class
+	 * files need no stack map frames, which keeps the code generator simple.
+	 */
+	private static final class ClassFile {
+		int utf8(String s) {
+			Integer index = constants.get("U" + s);
+			if (index != null)
+				return index;
+
+			try {
+				pool.writeByte(1);
+				pool.writeUTF(s);
+			}
+			catch (IOException e) {
+				Lib.assertNotReached();
+			}
+			return add("U" + s);
+		}
+
+		int classRef(String name) {
+			return ref("C" + name, 7, utf8(name), -1);
+		}
+
+		int methodRef(String owner, String name, String type) {
+			int cls = classRef(owner);
+			int nameAndType = ref("N" + name + type, 12, utf8(name),
+					utf8(type));
+			return ref("M" + owner + "." + name + type, 10, cls, nameAndType);
+		}
+
+		int integer(int value) {
+			Integer index = constants.get("I" + value);
+			if (index != null)
+				return index;
+
+			try {
+				pool.writeByte(3);
+				pool.writeInt(value);
+			}
+			catch (IOException e) {
+				Lib.assertNotReached();
+			}
+			return add("I" + value);
+		}
+
+		private int ref(String key, int tag, int a, int b) {
+			Integer index = constants.get(key);
+			if (index != null)
+				return index;
+
+			try {
+				pool.writeByte(tag);
+				pool.writeShort(a);
+				if (b != -1)
+					pool.writeShort(b);
+			}
+			catch (IOException e) {
+				Lib.assertNotReached();
+			}
+			return add(key);
+		}
+
+		private int add(String key) {
+			constants.put(key, numConstants);
+			return numConstants++;
+		}
+
+		byte[] toBytes(Code run) {
+			int thisClass = classRef(blockClass + "$Compiled");
+			int superClass = classRef(blockClass);
+			int init = methodRef(blockClass, "<init>", "()V");
+			int initName = utf8("<init>"), initType = utf8("()V");
+			int runName = utf8("run");
+			int runType = utf8("(L" + processorClass + ";[I)V");
+			int codeName = utf8("Code");
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+
+			try {
+				out.writeInt(0xCAFEBABE);
+				out.writeShort(0);
+				out.writeShort(49);
+
+				out.writeShort(numConstants);
+				poolBytes.writeTo(out);
+
+				out.writeShort(0x0031); // public final super
+				out.writeShort(thisClass);
+				out.writeShort(superClass);
+				out.writeShort(0); // interfaces
+				out.writeShort(0); // fields
+
+				out.writeShort(2);
+
+				// public <init>() { super(); }
+				out.writeShort(0x0001);
+				out.writeShort(initName);
+				out.writeShort(initType);
+				out.writeShort(1);
+				out.writeShort(codeName);
+				out.writeInt(12 + 5);
+				out.writeShort(1);
+				out.writeShort(1);
+				out.writeInt(5);
+				out.writeByte(0x2a); // aload_0
+				out.writeByte(INVOKESPECIAL);
+				out.writeShort(init);
+				out.writeByte(RETURN);
+				out.writeShort(0);
+				out.writeShort(0);
+
+				// void run(Processor, int[])
+				out.writeShort(0x0000);
+				out.writeShort(runName);
+				out.writeShort(runType);
+				out.writeShort(1);
+				out.writeShort(codeName);
+				out.writeInt(12 + run.length());
+				out.writeShort(maxStack);
+				out.writeShort(maxLocals);
+				out.writeInt(run.length());
+				out.write(run.bytes, 0, run.length());
+				out.writeShort(0);
+				out.writeShort(0);
+
+				out.writeShort(0); // attributes
+			}
+			catch (IOException e) {
+				Lib.assertNotReached();
+			}
+
+			return bytes.toByteArray();
+		}
+
+		private HashMap<String, Integer> constants = new HashMap<String, Integer>();
+
+		private int numConstants = 1;
+
+		private ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+
+		private DataOutputStream pool = new DataOutputStream(poolBytes);
+
+		private static final int maxStack = 8, maxLocals = 7;
+	}
+
+	/**
+	 * The bytecode of a method, with forward branches to labels patched once
+	 * the labels are placed.
+	 */
+	private static final class Code {
+		Code(ClassFile cf) {
+			this.cf = cf;
+		}
+
+		void op(int opcode) {
+			u1(opcode);
+		}
+
+		void push(int value) {
+			if (value >= -1 && value <= 5) {
+				u1(ICONST_0 + value);
+			}
+			else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+				u1(BIPUSH);
+				u1(value);
+			}
+			else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+				u1(SIPUSH);
+				u2(value);
+			}
+			else {
+				u1(LDC_W);
+				u2(cf.integer(value));
+			}
+		}
+
+		void aload(int local) {
+			u1(ALOAD);
+			u1(local);
+		}
+
+		void iload(int local) {
+			u1(ILOAD);
+			u1(local);
+		}
+
+		void istore(int local) {
+			u1(ISTORE);
+			u1(local);
+		}
+
+		void lload(int local) {
+			u1(LLOAD);
+			u1(local);
+		}
+
+		void lstore(int local) {
+			u1(LSTORE);
+			u1(local);
+		}
+
+		/** Push the value of a MIPS register. */
+		void loadRegister(int number) {
+			aload(2);
+			push(number);
+			u1(IALOAD);
+		}
+
+		/** Call a block helper on the processor, which is on the stack. */
+		void invoke(String name, String type) {
+			u1(INVOKEVIRTUAL);
+			u2(cf.methodRef(processorClass, name, type));
+		}
+
+		int newLabel() {
+			if (numLabels == labels.length) {
+				labels = Arrays.copyOf(labels, numLabels * 2);
+			}
+			labels[numLabels] = -1;
+			return numLabels++;
+		}
+
+		void mark(int label) {
+			labels[label] = length;
+		}
+
+		void jump(int opcode, int label) {
+			if (numFixups == fixups.length) {
+				fixups = Arrays.copyOf(fixups, numFixups * 2);
+				fixupLabels = Arrays.copyOf(fixupLabels, numFixups * 2);
+			}
+			fixups[numFixups] = length;
+			fixupLabels[numFixups++] = label;
+
+			u1(opcode);
+			u2(0);
+		}
+
+		int length() {
+			resolve();
+			return length;
+		}
+
+		private void resolve() {
+			for (int i = 0; i < numFixups; i++) {
+				int at = fixups[i];
+				int offset = labels[fixupLabels[i]] - at;
+				Lib.assertTrue(labels[fixupLabels[i]] != -1);
+				bytes[at + 1] = (byte) (offset >> 8);
+				bytes[at + 2] = (byte) offset;
+			}
+		}
+
+		private void u1(int value) {
+			if (length == bytes.length)
+				bytes = Arrays.copyOf(bytes, length * 2);
+			bytes[length++] = (byte) value;
+		}
+
+		private void u2(int value) {
+			u1(value >> 8);
+			u1(value);
+		}
+
+		private ClassFile cf;
+
+		byte[] bytes = new byte[1024];
+
+		private int length = 0;
+
+		private int[] labels = new int[16];
+
+		private int numLabels = 0;
+
+		private int[] fixups = new int[16], fixupLabels = new int[16];
+
+		private int numFixups = 0;
+	}
+}
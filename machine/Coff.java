@@ -15,6 +15,7 @@ public class Coff {
 		file = null;
 		entryPoint = 0;
 		sections = null;
+		symbolPointer = 0;
 	}
 
 	/**
@@ -45,6 +46,7 @@ public class Coff {
 		if (coff != null) {
 			this.entryPoint = coff.entryPoint;
 			this.sections = coff.sections;
+			this.symbolPointer = coff.symbolPointer;
 		}
 		else {
 			byte[] headers = new byte[headerLength + aoutHeaderLength];
@@ -58,6 +60,7 @@ public class Coff {
 
 			int magic = Lib.bytesToUnsignedShort(headers, 0);
 			int numSections = Lib.bytesToUnsignedShort(headers, 2);
+			symbolPointer = Lib.bytesToInt(headers, 8);
 			int optionalHeaderLength = Lib.bytesToUnsignedShort(headers, 16);
 			int flags = Lib.bytesToUnsignedShort(headers, 18);
 			entryPoint = Lib.bytesToInt(headers, headerLength + 16);
@@ -127,6 +130,35 @@ public class Coff {
 		return entryPoint;
 	}
 
+	/**
+	 * Return the name of the executable file.
+	 * 
+	 * @return the name of the executable file.
+	 */
+	public String getName() {
+		Lib.assertTrue(file != null);
+
+		return file.getName();
+	}
+
+	/**
+	 * Return the procedure symbols of the executable. The symbol table is read
+	 * the first time this is called, so the executable must not have been
+	 * closed yet.
+	 * 
+	 * @return the symbol table, which is empty if the executable has been
+	 * stripped.
+	 */
+	public CoffSymbolTable getSymbolTable() {
+		if (symbols == null) {
+			Lib.assertTrue(file != null && sections != null);
+
+			symbols = new CoffSymbolTable(file, symbolPointer);
+		}
+
+		return symbols;
+	}
+
 	/**
 	 * Close the executable file and release any resources allocated by this
 	 * loader.
@@ -145,6 +177,11 @@ public class Coff {
 	/** The sections in this COFF executable. */
 	protected CoffSection sections[];
 
+	/** The file offset of the symbolic header, or 0 if there is none. */
+	protected int symbolPointer;
+
+	private CoffSymbolTable symbols = null;
+
 	private static final int headerLength = 20;
 
 	private static final int aoutHeaderLength = 28;
@@ -5,7 +5,6 @@ package nachos.machine;
 import nachos.security.*;
 
 import java.io.EOFException;
-import java.util.Arrays;
 
 /**
  * A <tt>CoffSection</tt> manages a single section within a COFF executable.
@@ -178,7 +177,7 @@ public class CoffSection {
 		Lib.assertTrue(ppn >= 0 && ppn < Machine.processor().getNumPhysPages());
 
 		int pageSize = Processor.pageSize;
-		byte[] memory = Machine.processor().getMemory();
+		byte[] page = new byte[pageSize];
 		int paddr = ppn * pageSize;
 		int faddr = contentOffset + spn * pageSize;
 		int initlen;
@@ -191,9 +190,16 @@ public class CoffSection {
 			initlen = pageSize;
 
 		if (initlen > 0)
-			Lib.strictReadFile(file, faddr, memory, paddr, initlen);
+			Lib.strictReadFile(file, faddr, page, 0, initlen);
 
-		Arrays.fill(memory, paddr + initlen, paddr + pageSize, (byte) 0);
+		Machine.processor().writePhysical(paddr, page, 0, pageSize);
+
+		Profiler profiler = Machine.processor().profiler;
+		if (executable && profiler != null)
+			profiler.mapPage(coff, firstVPN + spn, ppn);
+
+		if (executable)
+			Machine.processor().mapHypercalls(coff, firstVPN + spn, ppn);
 	}
 
 	/** The COFF object to which this section belongs. */
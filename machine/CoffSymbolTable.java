@@ -0,0 +1,257 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * A <tt>CoffSymbolTable</tt> holds the procedure symbols of a COFF executable,
+ * sorted by address. The MIPS toolchain writes an extended COFF (ECOFF)
+ * symbolic header, so both the external symbols and the local symbols of
+ * each source file are read from there.
+ * 
+ * <p>
+ * Executables that were linked with <tt>-s</tt> have no symbol table, in
+ * which case the table is simply empty.
+ */
+public final class CoffSymbolTable {
+	/**
+	 * Read the procedure symbols of an executable.
+	 * 
+	 * @param file the file containing the executable.
+	 * @param symbolPointer the offset of the symbolic header in the file, or
+	 * 0 if the executable has been stripped.
+	 */
+	CoffSymbolTable(OpenFile file, int symbolPointer) {
+		numSymbols = 0;
+		addresses = new int[16];
+		names = new String[16];
+
+		if (symbolPointer > 0 && !readSymbols(file, symbolPointer)) {
+			Lib.debug(dbgCoff, "\tbad symbolic header, ignoring symbols");
+			numSymbols = 0;
+		}
+
+		sort();
+	}
+
+	/**
+	 * Return the number of procedure symbols.
+	 * 
+	 * @return the number of procedure symbols.
+	 */
+	public int getNumSymbols() {
+		return numSymbols;
+	}
+
+	/**
+	 * Return the name of the specified symbol. Symbols are numbered in order
+	 * of increasing address.
+	 * 
+	 * @param symbol the symbol number.
+	 * @return the name of the symbol.
+	 */
+	public String getName(int symbol) {
+		Lib.assertTrue(symbol >= 0 && symbol < numSymbols);
+
+		return names[symbol];
+	}
+
+	/**
+	 * Return the address of the specified symbol.
+	 * 
+	 * @param symbol the symbol number.
+	 * @return the virtual address of the symbol.
+	 */
+	public int getAddress(int symbol) {
+		Lib.assertTrue(symbol >= 0 && symbol < numSymbols);
+
+		return addresses[symbol];
+	}
+
+	/**
+	 * Find the procedure containing the specified address, that is, the last
+	 * symbol at or below it.
+	 * 
+	 * @param vaddr the virtual address to look up.
+	 * @return the symbol number, or -1 if no symbol is at or below
+	 * <i>vaddr</i>.
+	 */
+	public int lookup(int vaddr) {
+		int low = 0, high = numSymbols - 1, found = -1;
+
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+
+			if (addresses[middle] <= vaddr) {
+				found = middle;
+				low = middle + 1;
+			}
+			else {
+				high = middle - 1;
+			}
+		}
+
+		return found;
+	}
+
+	private boolean readSymbols(OpenFile file, int symbolPointer) {
+		// the symbolic information runs to the end of the file; read it all
+		// at once, from the host if we can, since the kernel did not ask for
+		// it and every read of the file takes simulated time
+		byte[] data = new byte[Math.max(file.length() - symbolPointer, 0)];
+		int amount = StubFileSystem.readHost(file, symbolPointer, data, 0,
+				data.length);
+		if (amount == -1)
+			amount = file.read(symbolPointer, data, 0, data.length);
+		if (amount != data.length)
+			return false;
+
+		byte[] header = slice(data, symbolPointer, symbolPointer,
+				symbolicHeaderLength);
+		if (header == null || Lib.bytesToUnsignedShort(header, 0) != magic)
+			return false;
+
+		int numLocal = Lib.bytesToInt(header, 32);
+		int localOffset = Lib.bytesToInt(header, 36);
+		int localStringsLength = Lib.bytesToInt(header, 56);
+		int localStringsOffset = Lib.bytesToInt(header, 60);
+		int externalStringsLength = Lib.bytesToInt(header, 64);
+		int externalStringsOffset = Lib.bytesToInt(header, 68);
+		int numFiles = Lib.bytesToInt(header, 72);
+		int fileOffset = Lib.bytesToInt(header, 76);
+		int numExternal = Lib.bytesToInt(header, 88);
+		int externalOffset = Lib.bytesToInt(header, 92);
+
+		// external symbols: a 4 byte prefix, then a local symbol record
+		byte[] externalStrings = slice(data, symbolPointer,
+				externalStringsOffset, externalStringsLength);
+		byte[] external = slice(data, symbolPointer, externalOffset,
+				numExternal * externalLength);
+		if (externalStrings == null || external == null)
+			return false;
+
+		for (int i = 0; i < numExternal; i++)
+			addSymbol(external, i * externalLength + 4, externalStrings, 0);
+
+		// local symbols, whose names are relative to their file's strings
+		byte[] localStrings = slice(data, symbolPointer, localStringsOffset,
+				localStringsLength);
+		byte[] local = slice(data, symbolPointer, localOffset, numLocal
+				* symbolLength);
+		byte[] files = slice(data, symbolPointer, fileOffset, numFiles
+				* fileLength);
+		if (localStrings == null || local == null || files == null)
+			return false;
+
+		for (int f = 0; f < numFiles; f++) {
+			int stringBase = Lib.bytesToInt(files, f * fileLength + 8);
+			int firstSymbol = Lib.bytesToInt(files, f * fileLength + 16);
+			int count = Lib.bytesToInt(files, f * fileLength + 20);
+
+			if (firstSymbol < 0 || count < 0 || firstSymbol + count > numLocal)
+				return false;
+
+			for (int i = firstSymbol; i < firstSymbol + count; i++)
+				addSymbol(local, i * symbolLength, localStrings, stringBase);
+		}
+
+		return true;
+	}
+
+	private void addSymbol(byte[] records, int offset, byte[] strings,
+			int stringBase) {
+		int nameOffset = stringBase + Lib.bytesToInt(records, offset);
+		int value = Lib.bytesToInt(records, offset + 4);
+		int bits = Lib.bytesToInt(records, offset + 8);
+
+		int type = bits & 0x3F;
+		int storageClass = (bits >>> 6) & 0x1F;
+
+		if ((type != stProc && type != stStaticProc) || storageClass != scText)
+			return;
+		if (nameOffset < 0 || nameOffset >= strings.length)
+			return;
+
+		if (numSymbols == addresses.length) {
+			addresses = Arrays.copyOf(addresses, numSymbols * 2);
+			names = Arrays.copyOf(names, numSymbols * 2);
+		}
+
+		addresses[numSymbols] = value;
+		names[numSymbols] = Lib.bytesToString(strings, nameOffset,
+				strings.length - nameOffset);
+		numSymbols++;
+	}
+
+	private void sort() {
+		Integer[] order = new Integer[numSymbols];
+		for (int i = 0; i < numSymbols; i++)
+			order[i] = i;
+
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Integer.compare(addresses[a], addresses[b]);
+			}
+		});
+
+		int[] sortedAddresses = new int[numSymbols];
+		String[] sortedNames = new String[numSymbols];
+
+		// a procedure can appear as both an external and a local symbol
+		int count = 0;
+		for (int i = 0; i < numSymbols; i++) {
+			int address = addresses[order[i]];
+			if (count > 0 && sortedAddresses[count - 1] == address)
+				continue;
+
+			sortedAddresses[count] = address;
+			sortedNames[count] = names[order[i]];
+			count++;
+		}
+
+		numSymbols = count;
+		addresses = sortedAddresses;
+		names = sortedNames;
+	}
+
+	/**
+	 * Return the part of the symbolic information at the specified file
+	 * offset, or <tt>null</tt> if it is not all there.
+	 */
+	private static byte[] slice(byte[] data, int symbolPointer, int offset,
+			int length) {
+		// empty tables may have no offset
+		if (length == 0)
+			return new byte[0];
+
+		int start = offset - symbolPointer;
+		if (start < 0 || length < 0 || (long) start + length > data.length)
+			return null;
+
+		return Arrays.copyOfRange(data, start, start + length);
+	}
+
+	private int numSymbols;
+
+	private int[] addresses;
+
+	private String[] names;
+
+	private static final int magic = 0x7009;
+
+	private static final int symbolicHeaderLength = 96;
+
+	private static final int externalLength = 16;
+
+	private static final int symbolLength = 12;
+
+	private static final int fileLength = 72;
+
+	private static final int stProc = 6, stStaticProc = 14;
+
+	private static final int scText = 1;
+
+	private static final char dbgCoff = 'c';
+}
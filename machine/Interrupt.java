@@ -4,9 +4,9 @@ package nachos.machine;
 
 import nachos.security.*;
 
-import java.util.TreeSet;
-import java.util.Iterator;
-import java.util.SortedSet;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
 
 /**
  * The <tt>Interrupt</tt> class emulates low-level interrupt hardware. The
@@ -38,6 +38,24 @@ import java.util.SortedSet;
  * simulation (even with randomized time slices), but it wouldn't work on real
  * hardware. But even though Nachos can't always detect when your program would
  * fail in real life, you should still write properly synchronized code.
+ * 
+ * <p>
+ * Pending interrupts are kept in a binary heap indexed by handle. A device
+ * that raises the same interrupt over and over registers it once, and then
+ * schedules, reschedules and cancels it through its handle without
+ * allocating anything. Finding the handle's heap position is constant time,
+ * but restoring the heap order is not, so scheduling, rescheduling and
+ * cancelling all take O(log <i>n</i>) time for <i>n</i> pending interrupts.
+ * A timing wheel would make them constant time, but its cascades can put
+ * interrupts due at the same tick out of the order they were scheduled in,
+ * and that order is part of what makes runs with the same seed repeat.
+ * 
+ * <p>
+ * If the <tt>Machine.blockOnInput</tt> key is set, devices mark the
+ * interrupts with which they poll for host input, and signal when input
+ * arrives. While the processor is idle and only such polls are pending,
+ * <tt>idle()</tt> then blocks the host thread instead of spinning through
+ * simulated time.
  */
 public final class Interrupt {
 	/**
@@ -52,7 +70,21 @@ public final class Interrupt {
 		privilege.interrupt = new InterruptPrivilege();
 
 		enabled = false;
-		pending = new TreeSet<PendingInterrupt>();
+		blockOnInput = Config.getBoolean("Machine.blockOnInput", false);
+
+		heap = new int[initialCapacity];
+		slotTime = new long[initialCapacity];
+		slotSequence = new long[initialCapacity];
+		slotHandler = new Runnable[initialCapacity];
+		slotType = new int[initialCapacity];
+		slotPosition = new int[initialCapacity];
+		slotOneShot = new boolean[initialCapacity];
+		slotPollsInput = new boolean[initialCapacity];
+		freeSlots = new int[initialCapacity];
+
+		for (int slot = 0; slot < initialCapacity; slot++)
+			freeSlots[numFree++] = slot;
+		numSlots = initialCapacity;
 	}
 
 	/**
@@ -119,16 +151,257 @@ public final class Interrupt {
 		return !enabled;
 	}
 
+	/**
+	 * Tests whether the processor was running kernel code when the interrupt
+	 * being handled was taken. Only meaningful inside an interrupt handler.
+	 * 
+	 * @return <tt>true</tt> if the interrupt was taken in kernel mode,
+	 * <tt>false</tt> if it interrupted a user program.
+	 */
+	public boolean interruptedKernel() {
+		return inKernelMode;
+	}
+
+	/**
+	 * Return the number of interrupts of the specified type that have been
+	 * handled so far.
+	 * 
+	 * @param type the name the interrupts were scheduled with.
+	 * @return the number of interrupts of that type handled.
+	 */
+	public long getNumHandled(String type) {
+		Integer index = typeIndices.get(type);
+
+		return (index == null) ? 0 : typeCounts[index];
+	}
+
+	/**
+	 * Fast-forward simulated time while the processor is idle. An idle loop
+	 * that only re-enables interrupts costs one kernel tick per iteration, so
+	 * instead of spinning, the kernel may call this with interrupts disabled
+	 * to skip the iterations in which nothing would happen.
+	 * 
+	 * <p>
+	 * Time is advanced up to the kernel tick in which the next pending
+	 * interrupt becomes due. The interrupt is therefore still delivered at the
+	 * same time as if the idle loop had spun, and the skipped time is counted
+	 * as kernel ticks just as the idle loop would have counted it.
+	 * 
+	 * <p>
+	 * If the only pending interrupts poll for host input, nothing can happen
+	 * until input arrives, so when <tt>Machine.blockOnInput</tt> is set the
+	 * host thread first waits for a device to signal input. No simulated time
+	 * passes while it waits.
+	 * 
+	 * @return the number of ticks skipped.
+	 */
+	public long idle() {
+		Lib.assertTrue(disabled());
+
+		// tick one at a time so that every tick is traced
+		if (Lib.test(dbgInt) || heapSize == 0)
+			return 0;
+
+		if (blockOnInput && onlyPollsPending())
+			waitForInput();
+
+		Stats stats = privilege.stats;
+
+		// the idle loop delivers an interrupt on the first tick at or past it
+		long ticks = (slotTime[heap[0]] - stats.totalTicks - 1)
+				/ Stats.KernelTick;
+
+		if (ticks <= 0)
+			return 0;
+
+		stats.kernelTicks += ticks * Stats.KernelTick;
+		stats.totalTicks += ticks * Stats.KernelTick;
+
+		return ticks * Stats.KernelTick;
+	}
+
 	private void schedule(long when, String type, Runnable handler) {
+		int handle = register(type, handler);
+		slotOneShot[handle] = true;
+
+		schedule(handle, when);
+	}
+
+	private int register(String type, Runnable handler) {
+		Lib.assertTrue(handler != null);
+
+		if (numFree == 0)
+			grow();
+
+		int slot = freeSlots[--numFree];
+		slotHandler[slot] = handler;
+		slotType[slot] = typeIndex(type);
+		slotPosition[slot] = -1;
+		slotOneShot[slot] = false;
+		slotPollsInput[slot] = false;
+
+		return slot;
+	}
+
+	private boolean onlyPollsPending() {
+		for (int i = 0; i < heapSize; i++) {
+			if (!slotPollsInput[heap[i]])
+				return false;
+		}
+
+		return true;
+	}
+
+	/** Block the host thread until a device signals that input arrived. */
+	private void waitForInput() {
+		Lib.debug(dbgInt, "Waiting for host input");
+
+		synchronized (inputLock) {
+			while (!inputArrived) {
+				try {
+					inputLock.wait();
+				}
+				catch (InterruptedException e) {
+				}
+			}
+
+			inputArrived = false;
+		}
+	}
+
+	private void inputArrived() {
+		synchronized (inputLock) {
+			inputArrived = true;
+			inputLock.notifyAll();
+		}
+	}
+
+	private int typeIndex(String type) {
+		Integer index = typeIndices.get(type);
+		if (index != null)
+			return index;
+
+		if (typeIndices.size() == typeNames.length) {
+			typeNames = Arrays.copyOf(typeNames, typeNames.length * 2);
+			typeCounts = Arrays.copyOf(typeCounts, typeCounts.length * 2);
+		}
+
+		int newIndex = typeIndices.size();
+		typeNames[newIndex] = type;
+		typeIndices.put(type, newIndex);
+		return newIndex;
+	}
+
+	private void schedule(int handle, long when) {
 		Lib.assertTrue(when > 0);
+		Lib.assertTrue(slotHandler[handle] != null);
 
 		long time = privilege.stats.totalTicks + when;
-		PendingInterrupt toOccur = new PendingInterrupt(time, type, handler);
 
-		Lib.debug(dbgInt, "Scheduling the " + type
-				+ " interrupt handler at time = " + time);
+		if (Lib.test(dbgInt))
+			System.out.println("Scheduling the " + typeNames[slotType[handle]]
+					+ " interrupt handler at time = " + time);
+
+		// a rescheduled interrupt goes after others due at the same time
+		slotTime[handle] = time;
+		slotSequence[handle] = numScheduled++;
+
+		if (slotPosition[handle] == -1) {
+			heap[heapSize] = handle;
+			slotPosition[handle] = heapSize++;
+			siftUp(slotPosition[handle]);
+		}
+		else {
+			siftUp(slotPosition[handle]);
+			siftDown(slotPosition[handle]);
+		}
+	}
+
+	private void cancel(int handle) {
+		int position = slotPosition[handle];
+		if (position == -1)
+			return;
 
-		pending.add(toOccur);
+		removeAt(position);
+	}
+
+	/** Double the capacity of the slot and heap arrays. */
+	private void grow() {
+		int capacity = heap.length * 2;
+
+		heap = Arrays.copyOf(heap, capacity);
+		slotTime = Arrays.copyOf(slotTime, capacity);
+		slotSequence = Arrays.copyOf(slotSequence, capacity);
+		slotHandler = Arrays.copyOf(slotHandler, capacity);
+		slotType = Arrays.copyOf(slotType, capacity);
+		slotPosition = Arrays.copyOf(slotPosition, capacity);
+		slotOneShot = Arrays.copyOf(slotOneShot, capacity);
+		slotPollsInput = Arrays.copyOf(slotPollsInput, capacity);
+		freeSlots = Arrays.copyOf(freeSlots, capacity);
+
+		for (int slot = numSlots; slot < capacity; slot++)
+			freeSlots[numFree++] = slot;
+		numSlots = capacity;
+	}
+
+	/** Remove the slot at the specified heap position. */
+	private void removeAt(int position) {
+		int slot = heap[position];
+		slotPosition[slot] = -1;
+
+		int last = heap[--heapSize];
+		if (position == heapSize)
+			return;
+
+		heap[position] = last;
+		slotPosition[last] = position;
+		siftUp(position);
+		siftDown(slotPosition[last]);
+	}
+
+	private boolean before(int a, int b) {
+		if (slotTime[a] != slotTime[b])
+			return slotTime[a] < slotTime[b];
+
+		return slotSequence[a] < slotSequence[b];
+	}
+
+	private void siftUp(int position) {
+		int slot = heap[position];
+
+		while (position > 0) {
+			int parent = (position - 1) / 2;
+			if (!before(slot, heap[parent]))
+				break;
+
+			heap[position] = heap[parent];
+			slotPosition[heap[position]] = position;
+			position = parent;
+		}
+
+		heap[position] = slot;
+		slotPosition[slot] = position;
+	}
+
+	private void siftDown(int position) {
+		int slot = heap[position];
+
+		while (true) {
+			int child = position * 2 + 1;
+			if (child >= heapSize)
+				break;
+			if (child + 1 < heapSize && before(heap[child + 1], heap[child]))
+				child++;
+			if (!before(heap[child], slot))
+				break;
+
+			heap[position] = heap[child];
+			slotPosition[heap[position]] = position;
+			position = child;
+		}
+
+		heap[position] = slot;
+		slotPosition[slot] = position;
 	}
 
 	private void tick(boolean inKernelMode) {
@@ -146,11 +419,42 @@ public final class Interrupt {
 		if (Lib.test(dbgInt))
 			System.out.println("== Tick " + stats.totalTicks + " ==");
 
+		this.inKernelMode = inKernelMode;
+
 		enabled = false;
 		checkIfDue();
 		enabled = true;
 	}
 
+	private long userTicksUntilDue() {
+		// tick one at a time so that every tick is traced
+		if (Lib.test(dbgInt))
+			return 0;
+
+		if (heapSize == 0)
+			return Long.MAX_VALUE;
+
+		long ticks = (slotTime[heap[0]] - privilege.stats.totalTicks - 1)
+				/ Stats.UserTick;
+
+		return Math.max(ticks, 0);
+	}
+
+	private void advanceUserTicks(long ticks) {
+		Lib.assertTrue(ticks >= 0);
+
+		if (ticks == 0)
+			return;
+
+		Stats stats = privilege.stats;
+
+		stats.userTicks += ticks * Stats.UserTick;
+		stats.totalTicks += ticks * Stats.UserTick;
+
+		// same interrupt state as after tick(false)
+		enabled = true;
+	}
+
 	private void checkIfDue() {
 		long time = privilege.stats.totalTicks;
 
@@ -159,27 +463,33 @@ public final class Interrupt {
 		if (Lib.test(dbgInt))
 			print();
 
-		if (pending.isEmpty())
-			return;
-
-		if (((PendingInterrupt) pending.first()).time > time)
+		if (heapSize == 0 || slotTime[heap[0]] > time)
 			return;
 
 		Lib.debug(dbgInt, "Invoking interrupt handlers at time = " + time);
 
-		while (!pending.isEmpty()
-				&& ((PendingInterrupt) pending.first()).time <= time) {
-			PendingInterrupt next = (PendingInterrupt) pending.first();
-			pending.remove(next);
+		while (heapSize > 0 && slotTime[heap[0]] <= time) {
+			int next = heap[0];
+			removeAt(0);
+
+			Runnable handler = slotHandler[next];
+			int type = slotType[next];
+
+			// a one-shot slot can be reused by the handler itself
+			if (slotOneShot[next]) {
+				slotHandler[next] = null;
+				freeSlots[numFree++] = next;
+			}
 
-			Lib.assertTrue(next.time <= time);
+			typeCounts[type]++;
 
 			if (privilege.processor != null)
 				privilege.processor.flushPipe();
 
-			Lib.debug(dbgInt, "  " + next.type);
+			if (Lib.test(dbgInt))
+				System.out.println("  " + typeNames[type]);
 
-			next.handler.run();
+			handler.run();
 		}
 
 		Lib.debug(dbgInt, "  (end of list)");
@@ -190,55 +500,84 @@ public final class Interrupt {
 				+ ", interrupts " + (enabled ? "on" : "off"));
 		System.out.println("Pending interrupts:");
 
-		for (Iterator i = pending.iterator(); i.hasNext();) {
-			PendingInterrupt toOccur = (PendingInterrupt) i.next();
-			System.out.println("  " + toOccur.type + ", scheduled at "
-					+ toOccur.time);
+		Integer[] pending = new Integer[heapSize];
+		for (int i = 0; i < heapSize; i++)
+			pending[i] = heap[i];
+
+		Arrays.sort(pending, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return before(a, b) ? -1 : before(b, a) ? 1 : 0;
+			}
+		});
+
+		for (int i = 0; i < pending.length; i++) {
+			System.out.println("  " + typeNames[slotType[pending[i]]]
+					+ ", scheduled at " + slotTime[pending[i]]);
 		}
 
 		System.out.println("  (end of list)");
+		System.out.println("Handled interrupts:");
+
+		for (int i = 0; i < typeIndices.size(); i++)
+			System.out.println("  " + typeNames[i] + ": " + typeCounts[i]);
 	}
 
-	private class PendingInterrupt implements Comparable {
-		PendingInterrupt(long time, String type, Runnable handler) {
-			this.time = time;
-			this.type = type;
-			this.handler = handler;
-			this.id = numPendingInterruptsCreated++;
-		}
+	/** The number of times an interrupt has been scheduled. */
+	private long numScheduled = 0;
 
-		public int compareTo(Object o) {
-			PendingInterrupt toOccur = (PendingInterrupt) o;
+	private Privilege privilege;
 
-			// can't return 0 for unequal objects, so check all fields
-			if (time < toOccur.time)
-				return -1;
-			else if (time > toOccur.time)
-				return 1;
-			else if (id < toOccur.id)
-				return -1;
-			else if (id > toOccur.id)
-				return 1;
-			else
-				return 0;
-		}
+	private boolean enabled;
 
-		long time;
+	/** Whether the last tick was taken in kernel mode. */
+	private boolean inKernelMode = true;
 
-		String type;
+	/**
+	 * The pending interrupts, as a binary heap of slots ordered by time, and
+	 * then by the order they were scheduled in.
+	 */
+	private int[] heap;
 
-		Runnable handler;
+	private int heapSize = 0;
 
-		private long id;
-	}
+	/** When each slot's interrupt is due, if it is pending. */
+	private long[] slotTime;
 
-	private long numPendingInterruptsCreated = 0;
+	private long[] slotSequence;
 
-	private Privilege privilege;
+	/** The handler of each slot, or <tt>null</tt> if the slot is free. */
+	private Runnable[] slotHandler;
 
-	private boolean enabled;
+	private int[] slotType;
+
+	/** The position of each slot in the heap, or -1 if it is not pending. */
+	private int[] slotPosition;
+
+	/** Whether a slot is freed after its interrupt is handled. */
+	private boolean[] slotOneShot;
+
+	/** Whether each slot only polls for host input. */
+	private boolean[] slotPollsInput;
 
-	private TreeSet<PendingInterrupt> pending;
+	private int[] freeSlots;
+
+	private int numFree = 0, numSlots = 0;
+
+	/** The interrupt types seen so far, and how many of each were handled. */
+	private String[] typeNames = new String[initialCapacity];
+
+	private long[] typeCounts = new long[initialCapacity];
+
+	private HashMap<String, Integer> typeIndices = new HashMap<String, Integer>();
+
+	private static final int initialCapacity = 16;
+
+	private boolean blockOnInput;
+
+	/** Set by device threads when host input arrives, under <tt>inputLock</tt>. */
+	private boolean inputArrived = false;
+
+	private final Object inputLock = new Object();
 
 	private static final char dbgInt = 'i';
 
@@ -247,8 +586,46 @@ public final class Interrupt {
 			Interrupt.this.schedule(when, type, handler);
 		}
 
+		public int register(String type, Runnable handler) {
+			return Interrupt.this.register(type, handler);
+		}
+
+		public void schedule(int handle, long when) {
+			Interrupt.this.schedule(handle, when);
+		}
+
+		public void cancel(int handle) {
+			Interrupt.this.cancel(handle);
+		}
+
+		public boolean isPending(int handle) {
+			return slotPosition[handle] != -1;
+		}
+
+		public boolean blocksOnInput() {
+			return blockOnInput;
+		}
+
+		public void setPollsInput(int handle, boolean pollsInput) {
+			Lib.assertTrue(slotHandler[handle] != null);
+
+			slotPollsInput[handle] = pollsInput;
+		}
+
+		public void inputArrived() {
+			Interrupt.this.inputArrived();
+		}
+
 		public void tick(boolean inKernelMode) {
 			Interrupt.this.tick(inKernelMode);
 		}
+
+		public long userTicksUntilDue() {
+			return Interrupt.this.userTicksUntilDue();
+		}
+
+		public void advanceUserTicks(long ticks) {
+			Interrupt.this.advanceUserTicks(ticks);
+		}
 	}
 }
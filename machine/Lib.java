@@ -449,6 +449,47 @@ public final class Lib {
 		return result;
 	}
 
+	/**
+	 * Creates a string representation of a number with the specified number
+	 * of digits after the decimal point. Unlike <tt>String.format()</tt>, this
+	 * does not depend on the locale.
+	 * 
+	 * @param value a number.
+	 * @param places the number of digits after the decimal point.
+	 * @return a string representation with <tt>places</tt> decimals.
+	 */
+	public static String toFixedString(double value, int places) {
+		assertTrue(places >= 0 && places < 10);
+
+		long scale = 1;
+		for (int i = 0; i < places; i++)
+			scale *= 10;
+
+		long scaled = Math.round(Math.abs(value) * scale);
+		String result = Long.toString(scaled / scale);
+		if (places > 0) {
+			String fraction = Long.toString(scaled % scale);
+			while (fraction.length() < places)
+				fraction = "0" + fraction;
+			result += "." + fraction;
+		}
+
+		return (value < 0 && scaled != 0) ? "-" + result : result;
+	}
+
+	/**
+	 * Pads a string with spaces on the left to the specified width.
+	 * 
+	 * @param s a string.
+	 * @param width the minimum width to pad to.
+	 * @return the padded string.
+	 */
+	public static String padLeft(String s, int width) {
+		while (s.length() < width)
+			s = " " + s;
+		return s;
+	}
+
 	/**
 	 * Divide two non-negative integers, round the quotient up to the nearest
 	 * integer, and return it.
@@ -93,11 +93,14 @@ public final class Machine {
 	}
 
 	/**
-	 * Print stats, and terminate Nachos.
+	 * Print stats, and the profile if the processor is profiling, and
+	 * terminate Nachos.
 	 */
 	public static void halt() {
 		System.out.print("Machine halting!\n\n");
 		stats.print();
+		if (processor != null && processor.profiler != null)
+			processor.profiler.report();
 		terminate();
 	}
 
@@ -323,7 +326,9 @@ public final class Machine {
 	}
 
 	/**
-	 * Return the MIPS processor.
+	 * Return the MIPS processor. The machine has only the one processor, and
+	 * since only one TCB runs at a time, a kernel never has to synchronize
+	 * against code running on another processor.
 	 * 
 	 * @return the MIPS processor, or <tt>null</tt> if it is not present.
 	 */
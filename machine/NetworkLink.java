@@ -117,6 +117,15 @@ public class NetworkLink {
 			}
 		};
 
+		receiveHandle = privilege.interrupt.register("network recv",
+				receiveInterrupt);
+		sendHandle = privilege.interrupt.register("network send",
+				sendInterrupt);
+
+		// the receive thread signals each packet it receives
+		privilege.interrupt.setPollsInput(receiveHandle,
+				privilege.interrupt.blocksOnInput());
+
 		scheduleReceiveInterrupt();
 
 		Thread receiveThread = new Thread(new Runnable() {
@@ -161,8 +170,7 @@ public class NetworkLink {
 	}
 
 	private void scheduleReceiveInterrupt() {
-		privilege.interrupt.schedule(Stats.NetworkTime, "network recv",
-				receiveInterrupt);
+		privilege.interrupt.schedule(receiveHandle, Stats.NetworkTime);
 	}
 
 	private synchronized void receiveInterrupt() {
@@ -241,12 +249,13 @@ public class NetworkLink {
 			synchronized (this) {
 				incomingBytes = packetBytes;
 			}
+
+			privilege.interrupt.inputArrived();
 		}
 	}
 
 	private void scheduleSendInterrupt() {
-		privilege.interrupt.schedule(Stats.NetworkTime, "network send",
-				sendInterrupt);
+		privilege.interrupt.schedule(sendHandle, Stats.NetworkTime);
 	}
 
 	private void sendInterrupt() {
@@ -321,6 +330,8 @@ public class NetworkLink {
 
 	private Runnable sendInterrupt;
 
+	private int receiveHandle, sendHandle;
+
 	private Runnable receiveInterruptHandler = null;
 
 	private Runnable sendInterruptHandler = null;
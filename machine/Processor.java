@@ -4,6 +4,14 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -12,12 +20,25 @@ import nachos.security.*;
  * exception handler to be called on any user mode exception.
  * 
  * <p>
+ * The processor also implements the MIPS II <tt>ll</tt> and <tt>sc</tt>
+ * instructions, so that user programs can synchronize without a syscall. An
+ * <tt>sc</tt> fails if the word linked by the last <tt>ll</tt> has been
+ * written since, or if a trap, an interrupt or an address space change came
+ * in between.
+ * 
+ * <p>
  * The <tt>Processor</tt> API is re-entrant, so a single simulated processor can
  * be shared by multiple user threads.
  * 
  * <p>
  * An instance of a <tt>Processor</tt> also includes pages of physical memory
  * accessible to user programs, the size of which is fixed by the constructor.
+ * The <tt>Processor.memoryBackend</tt> key chooses where it is kept: on the
+ * Java heap (<tt>heap</tt>, the default), in a direct buffer outside the heap
+ * (<tt>direct</tt>), or in a file mapped into memory (<tt>mapped</tt>, named
+ * by <tt>Processor.memoryFile</tt>). Physical addresses are Java
+ * <tt>int</tt>s with every backend, so physical memory is limited to 2 GB,
+ * or 2,097,151 pages.
  */
 public final class Processor {
 	/**
@@ -45,9 +66,66 @@ public final class Processor {
 		for (int i = 0; i < numUserRegisters; i++)
 			registers[i] = 0;
 
-		mainMemory = new byte[pageSize * numPhysPages];
+		invalidateTranslations();
+
+		Lib.assertTrue((long) pageSize * numPhysPages <= Integer.MAX_VALUE,
+				"too many physical pages");
+		memorySize = pageSize * numPhysPages;
+
+		String memoryBackend = Config.getString("Processor.memoryBackend",
+				"heap");
+		if (memoryBackend.equals("heap")) {
+			mainMemory = new byte[memorySize];
+			memoryWords = ByteBuffer.wrap(mainMemory);
+		}
+		else if (memoryBackend.equals("direct")) {
+			mainMemory = null;
+			memoryWords = ByteBuffer.allocateDirect(memorySize);
+		}
+		else if (memoryBackend.equals("mapped")) {
+			mainMemory = null;
+			memoryWords = mapMemory(Config.getString("Processor.memoryFile",
+					"nachos.mem"));
+		}
+		else {
+			Lib.assertNotReached("unknown Processor.memoryBackend "
+					+ memoryBackend);
+		}
+		memoryWords.order(ByteOrder.LITTLE_ENDIAN);
+
+		if (Config.getBoolean("Processor.decodeCache", true))
+			decodedPages = new DecodedPage[numPhysPages];
+		else
+			decodedPages = null;
+
+		// the block compiler runs out of the decode cache
+		usingJIT = (decodedPages != null && Config.getBoolean("Processor.jit",
+				false));
+		jitThreshold = Config.getInteger("Processor.jitThreshold", 16);
+		blockCompiler = usingJIT ? new BlockCompiler(privilege) : null;
+
+		if (Config.getBoolean("Processor.profile", false))
+			profiler = new Profiler(privilege, numPhysPages, Mips.numOpcodes);
+		else
+			profiler = null;
+
+		if (Config.getBoolean("Processor.hypercalls", false)) {
+			hypercallPages = new HypercallPage[numPhysPages];
+			hypercallCallCost = Config.getInteger(
+					"Processor.hypercallCallCost", 1);
+			hypercallByteCost = Config.getInteger(
+					"Processor.hypercallByteCost", 0);
+		}
+		else {
+			hypercallPages = null;
+		}
 
 		if (usingTLB) {
+			tlbSize = Config.getInteger("Processor.tlbSize", 4);
+			tlbWays = Config.getInteger("Processor.tlbWays", tlbSize);
+			Lib.assertTrue(tlbSize > 0 && tlbWays > 0 && tlbSize % tlbWays == 0,
+					"bad TLB geometry");
+
 			translations = new TranslationEntry[tlbSize];
 			for (int i = 0; i < tlbSize; i++)
 				translations[i] = new TranslationEntry();
@@ -55,6 +133,9 @@ public final class Processor {
 		else {
 			translations = null;
 		}
+
+		if (profiler != null)
+			profileContext = profiler.getContext(null);
 	}
 
 	/**
@@ -91,17 +172,83 @@ public final class Processor {
 
 		Machine.autoGrader().runProcessor(privilege);
 
+		invalidateTranslations();
+
 		Instruction inst = new Instruction();
 
 		while (true) {
+			// run the instructions whose ticks cannot make an interrupt due
+			long quiet = privilege.interrupt.userTicksUntilDue();
+			long start = numRetired;
+
 			try {
-				inst.run();
+				if (profiler != null) {
+					while (numRetired - start < quiet)
+						inst.runProfiled();
+				}
+				else if (usingJIT) {
+					while (numRetired - start < quiet)
+						inst.runBlock(quiet - (numRetired - start));
+				}
+				else {
+					while (numRetired - start < quiet)
+						inst.run();
+				}
+			}
+			catch (MipsException e) {
+				privilege.interrupt.advanceUserTicks(numRetired - start);
+				e.handle();
+				privilege.interrupt.tick(false);
+				continue;
+			}
+
+			// a hypercall can run past the next interrupt, which is then
+			// delivered while charging for it, in place of the full tick
+			long ran = numRetired - start;
+			chargeUserTicks(ran);
+			if (ran > quiet)
+				continue;
+
+			// then run the next one with a full tick
+			start = numRetired;
+			try {
+				if (profiler != null)
+					inst.runProfiled();
+				else
+					inst.run();
 			}
 			catch (MipsException e) {
 				e.handle();
 			}
 
 			privilege.interrupt.tick(false);
+
+			// a hypercall retires more than the one instruction the tick paid for
+			if (numRetired - start > 1)
+				chargeUserTicks(numRetired - start - 1);
+		}
+	}
+
+	/**
+	 * Advance simulated time by the specified number of user ticks. Usually
+	 * no interrupt can become due within them, but a hypercall retires many
+	 * instructions at once and can run past the next interrupt. In that case
+	 * the ticks are split at each interrupt, which is delivered with a full
+	 * tick just as if the instructions had been interpreted one at a time.
+	 * 
+	 * @param ticks the number of user ticks to advance.
+	 */
+	private void chargeUserTicks(long ticks) {
+		while (true) {
+			long quiet = privilege.interrupt.userTicksUntilDue();
+			if (ticks <= quiet) {
+				privilege.interrupt.advanceUserTicks(ticks);
+				return;
+			}
+
+			privilege.interrupt.advanceUserTicks(quiet);
+			privilege.interrupt.tick(false);
+			ticks -= quiet + 1;
 		}
 	}
 
@@ -175,6 +322,11 @@ public final class Processor {
 		Lib.assertTrue(!usingTLB);
 
 		this.translations = pageTable;
+		invalidateTranslations();
+		clearLink();
+
+		if (profiler != null)
+			profileContext = profiler.getContext(pageTable);
 	}
 
 	/**
@@ -188,6 +340,102 @@ public final class Processor {
 		return tlbSize;
 	}
 
+	/**
+	 * Return the associativity of this processor's TLB. The TLB is divided into
+	 * <tt>getTLBSize() / getTLBWays()</tt> sets of <tt>getTLBWays()</tt>
+	 * entries each; entries <tt>s * getTLBWays()</tt> through
+	 * <tt>(s + 1) * getTLBWays() - 1</tt> form set <tt>s</tt>. By default the
+	 * TLB is fully associative, i.e. it has a single set.
+	 * 
+	 * @return the number of entries in each set of the TLB.
+	 */
+	public int getTLBWays() {
+		Lib.assertTrue(usingTLB);
+
+		return tlbWays;
+	}
+
+	/**
+	 * Return the TLB set that a virtual page maps to. A translation for the
+	 * page is only found if it is written to an entry of this set.
+	 * 
+	 * @param vpn the virtual page number.
+	 * @return the set the page maps to.
+	 */
+	public int getTLBSet(int vpn) {
+		Lib.assertTrue(usingTLB);
+
+		return vpn % (tlbSize / tlbWays);
+	}
+
+	/**
+	 * Set the address space identifier of the running process. A TLB entry
+	 * whose <tt>asid</tt> is not <tt>TranslationEntry.globalASID</tt> only
+	 * matches while the processor is running with the same ASID, so a kernel
+	 * that tags its entries need not flush the TLB on a context switch.
+	 * 
+	 * @param asid the new address space identifier.
+	 */
+	public void setASID(int asid) {
+		Lib.assertTrue(usingTLB);
+
+		this.asid = asid;
+		invalidateTranslations();
+		clearLink();
+
+		if (profiler != null)
+			profileContext = profiler.getContext(asid);
+	}
+
+	/**
+	 * Get the address space identifier set by the last call to
+	 * <tt>setASID()</tt>.
+	 * 
+	 * @return the current address space identifier.
+	 */
+	public int getASID() {
+		Lib.assertTrue(usingTLB);
+
+		return asid;
+	}
+
+	/**
+	 * Read one of the processor's performance counters. The tick counters
+	 * count all the simulated time that has passed; the rest count the
+	 * instructions the processor retired, and the exceptions it raised. A
+	 * counter only ever increases, so a kernel can measure a thread by taking
+	 * differences.
+	 * 
+	 * @param counter the counter to read (see the <tt>counter<i>*</i></tt>
+	 * constants).
+	 * @return the value of the counter.
+	 */
+	public long readCounter(int counter) {
+		switch (counter) {
+		case counterInstructions:
+			return numRetired;
+		case counterUserTicks:
+			return privilege.stats.userTicks;
+		case counterKernelTicks:
+			return privilege.stats.kernelTicks;
+		case counterLoads:
+			return numLoads;
+		case counterStores:
+			return numStores;
+		case counterBranches:
+			return numBranches;
+		case counterTLBMisses:
+			return numTLBMisses;
+		case counterPageFaults:
+			return numPageFaults;
+		case counterSyscalls:
+			return numSyscalls;
+		default:
+			Lib.assertNotReached("bad performance counter " + counter);
+			return 0;
+		}
+	}
+
 	/**
 	 * Returns the specified TLB entry.
 	 * 
@@ -205,8 +453,9 @@ public final class Processor {
 	 * Fill the specified TLB entry.
 	 * 
 	 * <p>
-	 * The TLB is fully associative, so the location of an entry within the TLB
-	 * does not affect anything.
+	 * If the TLB is fully associative (the default), the location of an entry
+	 * within the TLB does not affect anything. Otherwise the entry must be
+	 * written to the set returned by <tt>getTLBSet()</tt>.
 	 * 
 	 * @param number the index into the TLB.
 	 * @param entry the new contents of the TLB entry.
@@ -216,6 +465,31 @@ public final class Processor {
 		Lib.assertTrue(number >= 0 && number < tlbSize);
 
 		translations[number] = new TranslationEntry(entry);
+		invalidateTranslations();
+	}
+
+	/**
+	 * Discard any cached translation of the specified virtual page. The
+	 * processor keeps a small cache of recent translations, which is flushed
+	 * whenever the kernel is entered through an exception or interrupt, and
+	 * by <tt>setPageTable()</tt> and <tt>writeTLBEntry()</tt>. A kernel that
+	 * changes a <tt>TranslationEntry</tt> in the current page table at any
+	 * other time must call this method afterwards.
+	 * 
+	 * @param vpn the virtual page whose translation changed.
+	 */
+	public void invalidateTranslation(int vpn) {
+		int slot = vpn & (microTLBSize - 1);
+
+		if (microVPN[slot] == vpn)
+			microVPN[slot] = -1;
+	}
+
+	/**
+	 * Discard all cached translations.
+	 */
+	private void invalidateTranslations() {
+		Arrays.fill(microVPN, -1);
 	}
 
 	/**
@@ -232,12 +506,109 @@ public final class Processor {
 	 * Return a reference to the physical memory array. The size of this array
 	 * is <tt>pageSize * getNumPhysPages()</tt>.
 	 * 
+	 * <p>
+	 * There is only such an array if physical memory is kept on the Java heap,
+	 * which is the default <tt>heap</tt> setting of the
+	 * <tt>Processor.memoryBackend</tt> key. With any other backend this method
+	 * fails, since copying memory onto the heap would defeat the purpose;
+	 * kernels that should work with every backend use <tt>readPhysical()</tt>
+	 * and <tt>writePhysical()</tt> instead.
+	 * 
 	 * @return the main memory array.
 	 */
 	public byte[] getMemory() {
+		Lib.assertTrue(mainMemory != null,
+				"getMemory() requires Processor.memoryBackend = heap");
+
 		return mainMemory;
 	}
 
+	/**
+	 * Map physical memory onto the specified file, so that the host operating
+	 * system rather than the Java heap holds its contents. The file is
+	 * truncated first, so memory starts out zeroed, and is deleted on exit.
+	 * 
+	 * @param fileName the name of the backing file.
+	 * @return a buffer mapping the whole of physical memory.
+	 */
+	private ByteBuffer mapMemory(String fileName) {
+		File file = new File(fileName);
+
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try {
+				raf.setLength(0);
+				raf.setLength(memorySize);
+
+				file.deleteOnExit();
+
+				// the mapping stays valid after the file is closed
+				return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+						memorySize);
+			}
+			finally {
+				raf.close();
+			}
+		}
+		catch (IOException e) {
+			Lib.assertNotReached("could not map physical memory onto "
+					+ fileName);
+			return null;
+		}
+	}
+
+	/**
+	 * Copy bytes out of physical memory.
+	 * 
+	 * @param paddr the first physical address to read.
+	 * @param data the array where the data will be stored.
+	 * @param offset the first byte to write in the array.
+	 * @param length the number of bytes to copy.
+	 */
+	public void readPhysical(int paddr, byte[] data, int offset, int length) {
+		Lib.assertTrue(paddr >= 0 && length >= 0
+				&& paddr + length <= memorySize);
+
+		if (mainMemory != null) {
+			System.arraycopy(mainMemory, paddr, data, offset, length);
+		}
+		else {
+			memoryWords.position(paddr);
+			memoryWords.get(data, offset, length);
+		}
+	}
+
+	/**
+	 * Copy bytes into physical memory. Unlike writing to the array returned by
+	 * <tt>getMemory()</tt>, this also discards any instructions the processor
+	 * has predecoded from the modified pages.
+	 * 
+	 * @param paddr the first physical address to write.
+	 * @param data the array containing the data to copy.
+	 * @param offset the first byte to read from the array.
+	 * @param length the number of bytes to copy.
+	 */
+	public void writePhysical(int paddr, byte[] data, int offset, int length) {
+		Lib.assertTrue(paddr >= 0 && length >= 0
+				&& paddr + length <= memorySize);
+
+		if (mainMemory != null) {
+			System.arraycopy(data, offset, mainMemory, paddr, length);
+		}
+		else {
+			memoryWords.position(paddr);
+			memoryWords.put(data, offset, length);
+		}
+
+		if (length > 0) {
+			for (int ppn = paddr / pageSize; ppn <= (paddr + length - 1)
+					/ pageSize; ppn++)
+				invalidateDecodedPage(ppn);
+
+			breakLinks(paddr, length);
+		}
+	}
+
 	/**
 	 * Concatenate a page number and an offset into an address.
 	 * 
@@ -287,11 +658,34 @@ public final class Processor {
 	 * @param vaddr the virtual address to translate.
 	 * @param size the size of the memory reference (must be 1, 2, or 4).
 	 * @param writing <tt>true</tt> if the memory reference is a write.
+	 * @param fetching <tt>true</tt> if the memory reference is an instruction
+	 * fetch.
 	 * @return the physical address.
 	 * @exception MipsException if a translation error occurred.
 	 */
-	private int translate(int vaddr, int size, boolean writing)
-			throws MipsException {
+	private int translate(int vaddr, int size, boolean writing,
+			boolean fetching) throws MipsException {
+		// try the cache of recent translations first
+		if ((vaddr & (size - 1)) == 0 && !Lib.test(dbgProcessor)) {
+			int vpn = pageFromAddress(vaddr);
+			int slot = vpn & (microTLBSize - 1);
+
+			if (microVPN[slot] == vpn) {
+				TranslationEntry entry = microEntry[slot];
+
+				if (!(entry.readOnly && writing)) {
+					if (usingTLB)
+						privilege.stats.numTLBHits++;
+
+					entry.used = true;
+					if (writing)
+						entry.dirty = true;
+
+					return microBase[slot] + offsetFromAddress(vaddr);
+				}
+			}
+		}
+
 		if (Lib.test(dbgProcessor))
 			System.out.println("\ttranslate vaddr=0x" + Lib.toHexString(vaddr)
 					+ (writing ? ", write" : ", read..."));
@@ -299,7 +693,7 @@ public final class Processor {
 		// check alignment
 		if ((vaddr & (size - 1)) != 0) {
 			Lib.debug(dbgProcessor, "\t\talignment error");
-			throw new MipsException(exceptionAddressError, vaddr);
+			throw trap(exceptionAddressError, vaddr);
 		}
 
 		// calculate virtual page number and offset from the virtual address
@@ -313,38 +707,54 @@ public final class Processor {
 			if (translations == null || vpn >= translations.length
 					|| translations[vpn] == null || !translations[vpn].valid) {
 				privilege.stats.numPageFaults++;
+				numPageFaults++;
 				Lib.debug(dbgProcessor, "\t\tpage fault");
-				throw new MipsException(exceptionPageFault, vaddr);
+				throw trap(exceptionPageFault, vaddr);
 			}
 
 			entry = translations[vpn];
 		}
-		// else, look through all TLB entries for matching vpn
+		// else, look through the TLB set the vpn maps to
 		else {
-			for (int i = 0; i < tlbSize; i++) {
-				if (translations[i].valid && translations[i].vpn == vpn) {
-					entry = translations[i];
+			int first = (vpn % (tlbSize / tlbWays)) * tlbWays;
+			for (int i = first; i < first + tlbWays; i++) {
+				TranslationEntry candidate = translations[i];
+				if (candidate.valid && candidate.vpn == vpn
+						&& (candidate.asid == asid
+						|| candidate.asid == TranslationEntry.globalASID)) {
+					entry = candidate;
 					break;
 				}
 			}
 			if (entry == null) {
 				privilege.stats.numTLBMisses++;
+				numTLBMisses++;
+				if (fetching)
+					privilege.stats.numTLBFetchMisses++;
+				else if (writing)
+					privilege.stats.numTLBStoreMisses++;
+				else
+					privilege.stats.numTLBLoadMisses++;
+
 				Lib.debug(dbgProcessor, "\t\tTLB miss");
-				throw new MipsException(exceptionTLBMiss, vaddr);
+				throw trap(exceptionTLBMiss, vaddr);
 			}
 		}
 
+		if (usingTLB)
+			privilege.stats.numTLBHits++;
+
 		// check if trying to write a read-only page
 		if (entry.readOnly && writing) {
 			Lib.debug(dbgProcessor, "\t\tread-only exception");
-			throw new MipsException(exceptionReadOnly, vaddr);
+			throw trap(exceptionReadOnly, vaddr);
 		}
 
 		// check if physical page number is out of range
 		int ppn = entry.ppn;
 		if (ppn < 0 || ppn >= numPhysPages) {
 			Lib.debug(dbgProcessor, "\t\tbad ppn");
-			throw new MipsException(exceptionBusError, vaddr);
+			throw trap(exceptionBusError, vaddr);
 		}
 
 		// set used and dirty bits as appropriate
@@ -354,55 +764,599 @@ public final class Processor {
 
 		int paddr = (ppn * pageSize) + offset;
 
-		if (Lib.test(dbgProcessor))
-			System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
-		return paddr;
+		int slot = vpn & (microTLBSize - 1);
+		microVPN[slot] = vpn;
+		microEntry[slot] = entry;
+		microBase[slot] = ppn * pageSize;
+
+		if (Lib.test(dbgProcessor))
+			System.out.println("\t\tpaddr=0x" + Lib.toHexString(paddr));
+		return paddr;
+	}
+
+	/**
+	 * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
+	 * and return the result.
+	 * 
+	 * @param vaddr the virtual address to read from.
+	 * @param size the number of bytes to read (1, 2, or 4).
+	 * @return the value read.
+	 * @exception MipsException if a translation error occurred.
+	 */
+	private int readMem(int vaddr, int size) throws MipsException {
+		return readPhysMem(translateRead(vaddr, size, false), size);
+	}
+
+	/**
+	 * Translate the virtual address of a read of <i>size</i> (1, 2, or 4)
+	 * bytes at <i>vaddr</i>, and return the physical address.
+	 * 
+	 * @param vaddr the virtual address to read from.
+	 * @param size the number of bytes to read (1, 2, or 4).
+	 * @param fetching <tt>true</tt> if the read is an instruction fetch.
+	 * @return the physical address.
+	 * @exception MipsException if a translation error occurred.
+	 */
+	private int translateRead(int vaddr, int size, boolean fetching)
+			throws MipsException {
+		if (Lib.test(dbgProcessor))
+			System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
+					+ ", size=" + size);
+
+		Lib.assertTrue(size == 1 || size == 2 || size == 4);
+
+		return translate(vaddr, size, false, fetching);
+	}
+
+	/**
+	 * Read <i>size</i> (1, 2, or 4) bytes of physical memory at <i>paddr</i>,
+	 * and return the result.
+	 * 
+	 * @param paddr the physical address to read from.
+	 * @param size the number of bytes to read (1, 2, or 4).
+	 * @return the value read.
+	 */
+	private int readPhysMem(int paddr, int size) {
+		int value;
+		switch (size) {
+		case 1:
+			value = memoryWords.get(paddr);
+			break;
+		case 2:
+			value = memoryWords.getShort(paddr);
+			break;
+		default:
+			value = memoryWords.getInt(paddr);
+			break;
+		}
+
+		if (Lib.test(dbgProcessor))
+			System.out.println("\t\tvalue read=0x"
+					+ Lib.toHexString(value, size * 2));
+
+		return value;
+	}
+
+	/**
+	 * Write <i>value</i> to </i>size</i> (1, 2, or 4) bytes of virtual memory
+	 * starting at <i>vaddr</i>.
+	 * 
+	 * @param vaddr the virtual address to write to.
+	 * @param size the number of bytes to write (1, 2, or 4).
+	 * @param value the value to store.
+	 * @exception MipsException if a translation error occurred.
+	 */
+	private void writeMem(int vaddr, int size, int value) throws MipsException {
+		if (Lib.test(dbgProcessor))
+			System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
+					+ ", size=" + size + ", value=0x"
+					+ Lib.toHexString(value, size * 2));
+
+		Lib.assertTrue(size == 1 || size == 2 || size == 4);
+
+		writePhysMem(translate(vaddr, size, true, false), size, value);
+	}
+
+	/**
+	 * Write <i>value</i> to <i>size</i> (1, 2, or 4) bytes of physical memory
+	 * at <i>paddr</i>.
+	 * 
+	 * @param paddr the physical address to write to.
+	 * @param size the number of bytes to write (1, 2, or 4).
+	 * @param value the value to store.
+	 */
+	private void writePhysMem(int paddr, int size, int value) {
+		invalidateDecodedPage(paddr / pageSize);
+		breakLinks(paddr, size);
+
+		switch (size) {
+		case 1:
+			memoryWords.put(paddr, (byte) value);
+			break;
+		case 2:
+			memoryWords.putShort(paddr, (short) value);
+			break;
+		default:
+			memoryWords.putInt(paddr, value);
+			break;
+		}
+	}
+
+	/**
+	 * Discard any predecoded instructions cached for the specified physical
+	 * page, and any library routines found in it. Called whenever the
+	 * processor writes to the page, either on behalf of a user program or
+	 * through <tt>writePhysical()</tt>.
+	 * 
+	 * <p>
+	 * Cached instructions are also tagged with the word they were decoded
+	 * from, so a kernel that writes to memory through <tt>getMemory()</tt>
+	 * never causes a stale instruction to execute.
+	 * 
+	 * @param ppn the physical page that was modified.
+	 */
+	private void invalidateDecodedPage(int ppn) {
+		if (decodedPages != null)
+			decodedPages[ppn] = null;
+		if (hypercallPages != null)
+			hypercallPages[ppn] = null;
+	}
+
+	/**
+	 * Link the specified word of physical memory, for a following
+	 * <tt>sc</tt>. The processor links at most one word at a time.
+	 * 
+	 * @param paddr the physical address of the word.
+	 */
+	private void setLink(int paddr) {
+		linkAddress = paddr;
+	}
+
+	/**
+	 * Break the processor's link, if it has one, so that its next <tt>sc</tt>
+	 * fails. Called on every trap and interrupt, and whenever the address
+	 * space changes, so a link never survives a context switch.
+	 */
+	private void clearLink() {
+		linkAddress = -1;
+	}
+
+	/**
+	 * Break the link if it is to a word in the specified range of physical
+	 * memory, which is about to be written.
+	 */
+	private void breakLinks(int paddr, int length) {
+		if (linkAddress != -1 && linkAddress < paddr + length
+				&& paddr < linkAddress + 4)
+			clearLink();
+	}
+
+	/**
+	 * Record the entry points of the library routines that the processor runs
+	 * natively, if any, found in a page of code that has just been loaded
+	 * from an executable. Does nothing unless <tt>Processor.hypercalls</tt>
+	 * is set.
+	 * 
+	 * <p>
+	 * A routine is recognized by the address of its COFF symbol. Its first
+	 * few instruction words are remembered too, and it is only run natively
+	 * while they are still in memory, so a kernel that reuses the page
+	 * without going through <tt>writePhysical()</tt> is safe.
+	 * 
+	 * <p>
+	 * This runs while the kernel loads a page, so the symbol table, read the
+	 * first time a page of code is loaded, comes straight from the host file
+	 * and costs no simulated time.
+	 * 
+	 * @param coff the executable.
+	 * @param vpn the virtual page the code was linked at.
+	 * @param ppn the physical page it was loaded into.
+	 */
+	void mapHypercalls(Coff coff, int vpn, int ppn) {
+		if (hypercallPages == null)
+			return;
+
+		CoffSymbolTable symbols = coff.getSymbolTable();
+		int pageBase = vpn * pageSize;
+		HypercallPage page = null;
+
+		for (int symbol = 0; symbol < symbols.getNumSymbols(); symbol++) {
+			int offset = symbols.getAddress(symbol) - pageBase;
+			if (offset < 0 || offset >= pageSize || offset % 4 != 0)
+				continue;
+
+			for (int routine = 0; routine < hypercallNames.length; routine++) {
+				if (!symbols.getName(symbol).equals(hypercallNames[routine]))
+					continue;
+
+				if (page == null)
+					page = new HypercallPage();
+
+				int numWords = Math.min(HypercallPage.signatureLength,
+						(pageSize - offset) / 4);
+				int[] signature = new int[numWords];
+				for (int i = 0; i < numWords; i++)
+					signature[i] = memoryWords.getInt(ppn * pageSize + offset
+							+ i * 4);
+
+				page.add(offset, routine, signature);
+			}
+		}
+
+		hypercallPages[ppn] = page;
+
+		// compiled blocks must not run through the new entry points
+		if (decodedPages != null && decodedPages[ppn] != null)
+			Arrays.fill(decodedPages[ppn].blocks, null);
+	}
+
+	/**
+	 * If the instruction at the specified physical address is the entry point
+	 * of a library routine, run the routine natively and return to its
+	 * caller, as though it had run and executed <tt>jr $31</tt>.
+	 * 
+	 * <p>
+	 * The routine's arguments are checked a page at a time with
+	 * <tt>probe()</tt> before anything is written. If any page it would touch
+	 * is not mapped with the access it needs, the processor declines, and the
+	 * routine is interpreted normally, so faults are taken exactly as they
+	 * would be without the accelerator.
+	 * 
+	 * <p>
+	 * The call is charged as <tt>Processor.hypercallCallCost</tt>
+	 * instructions, plus <tt>Processor.hypercallByteCost</tt> for every byte
+	 * read or written, so that simulated time can be kept comparable with an
+	 * interpreted run. The interpreted routines take about 4 (<tt>strlen</tt>)
+	 * to 10 (<tt>strcmp</tt>) instructions per byte.
+	 * 
+	 * @param paddr the physical address of the instruction about to run.
+	 * @return <tt>true</tt> if a routine was run natively.
+	 */
+	private boolean runHypercall(int paddr) {
+		HypercallPage page = hypercallPages[paddr / pageSize];
+		if (page == null)
+			return false;
+
+		int routine = page.lookup(paddr % pageSize, memoryWords, paddr);
+		if (routine == -1)
+			return false;
+
+		// tracing shows every instruction
+		if (Lib.test(dbgProcessor) || Lib.test(dbgDisassemble)
+				|| Lib.test(dbgFullDisassemble))
+			return false;
+
+		// the routine would see the load in progress as completed
+		int a0 = loadedRegister(regA0);
+		int a1 = loadedRegister(regA1);
+		int a2 = loadedRegister(regA2);
+
+		long bytes;
+		int result;
+
+		switch (routine) {
+		case hypercallMemcpy:
+			bytes = copyVirtual(a0, a1, a2 & 0xFFFFFFFFL);
+			result = a0;
+			break;
+		case hypercallMemset:
+			bytes = fillVirtual(a0, (byte) a1, a2 & 0xFFFFFFFFL);
+			result = a0;
+			break;
+		case hypercallStrlen:
+			bytes = stringLength(a0);
+			result = (int) bytes - 1;
+			break;
+		case hypercallStrcmp:
+			bytes = compareStrings(a0, a1);
+			result = stringComparison;
+			break;
+		default:
+			Lib.assertNotReached();
+			return false;
+		}
+
+		if (bytes == -1)
+			return false;
+
+		finishLoad();
+
+		registers[regV0] = result;
+		registers[regPC] = registers[regRA];
+		registers[regNextPC] = registers[regRA] + 4;
+
+		numRetired += hypercallCallCost + hypercallByteCost * bytes;
+
+		return true;
+	}
+
+	/**
+	 * Return the value the specified register will have once the delayed load
+	 * in progress completes.
+	 */
+	private int loadedRegister(int number) {
+		if (number != loadTarget || number == 0)
+			return registers[number];
+
+		return (registers[number] & ~loadMask) | (loadValue & loadMask);
+	}
+
+	/**
+	 * Translate a virtual address like <tt>translate()</tt>, but without
+	 * trapping, counting, or disturbing the cache of recent translations.
+	 * 
+	 * @param vaddr the virtual address to translate.
+	 * @param writing <tt>true</tt> if the page will be written.
+	 * @return the physical address, or -1 if the page is not mapped with the
+	 * needed access.
+	 */
+	private int probe(int vaddr, boolean writing) {
+		int vpn = pageFromAddress(vaddr);
+		TranslationEntry entry = null;
+
+		if (!usingTLB) {
+			if (translations != null && vpn < translations.length)
+				entry = translations[vpn];
+		}
+		else {
+			int first = (vpn % (tlbSize / tlbWays)) * tlbWays;
+			for (int i = first; i < first + tlbWays; i++) {
+				TranslationEntry candidate = translations[i];
+				if (candidate.valid && candidate.vpn == vpn
+						&& (candidate.asid == asid
+						|| candidate.asid == TranslationEntry.globalASID)) {
+					entry = candidate;
+					break;
+				}
+			}
+		}
+
+		if (entry == null || !entry.valid || (entry.readOnly && writing)
+				|| entry.ppn < 0 || entry.ppn >= numPhysPages)
+			return -1;
+
+		entry.used = true;
+		if (writing)
+			entry.dirty = true;
+
+		return entry.ppn * pageSize + offsetFromAddress(vaddr);
+	}
+
+	/**
+	 * Test whether every page of a range of virtual memory is mapped with the
+	 * needed access.
+	 */
+	private boolean probeRange(int vaddr, long length, boolean writing) {
+		long start = vaddr & 0xFFFFFFFFL;
+		if (start + length > 0x100000000L)
+			return false;
+
+		for (long page = start / pageSize; page * pageSize < start + length;
+				page++) {
+			if (probe((int) (page * pageSize), writing) == -1)
+				return false;
+		}
+
+		return true;
+	}
+
+	/**
+	 * Copy memory for a native <tt>memcpy()</tt>, which copies forwards a
+	 * byte at a time.
+	 * 
+	 * @return the number of bytes copied, or -1 to decline.
+	 */
+	private long copyVirtual(int dst, int src, long length) {
+		long from = src & 0xFFFFFFFFL, to = dst & 0xFFFFFFFFL;
+
+		// a forward copy onto the rest of its own source repeats bytes
+		if (to > from && to < from + length)
+			return -1;
+
+		if (!probeRange(src, length, false) || !probeRange(dst, length, true))
+			return -1;
+
+		for (long done = 0; done < length;) {
+			int chunk = (int) Math.min(length - done, Math.min(pageSize
+					- offsetFromAddress(src), pageSize - offsetFromAddress(dst)));
+
+			readPhysical(probe(src, false), hypercallBuffer, 0, chunk);
+			writePhysical(probe(dst, true), hypercallBuffer, 0, chunk);
+
+			src += chunk;
+			dst += chunk;
+			done += chunk;
+		}
+
+		return length;
+	}
+
+	/**
+	 * Fill memory for a native <tt>memset()</tt>.
+	 * 
+	 * @return the number of bytes written, or -1 to decline.
+	 */
+	private long fillVirtual(int dst, byte value, long length) {
+		if (!probeRange(dst, length, true))
+			return -1;
+
+		Arrays.fill(hypercallBuffer, value);
+
+		for (long done = 0; done < length;) {
+			int chunk = (int) Math.min(length - done, pageSize
+					- offsetFromAddress(dst));
+
+			writePhysical(probe(dst, true), hypercallBuffer, 0, chunk);
+
+			dst += chunk;
+			done += chunk;
+		}
+
+		return length;
+	}
+
+	/**
+	 * Measure a string for a native <tt>strlen()</tt>.
+	 * 
+	 * @return the number of bytes read, including the null terminator, or -1
+	 * to decline.
+	 */
+	private long stringLength(int vaddr) {
+		long length = 0;
+
+		while (length < 0x100000000L) {
+			int paddr = probe(vaddr, false);
+			if (paddr == -1)
+				return -1;
+
+			int chunk = pageSize - offsetFromAddress(vaddr);
+			for (int i = 0; i < chunk; i++) {
+				if (memoryWords.get(paddr + i) == 0)
+					return length + i + 1;
+			}
+
+			vaddr += chunk;
+			length += chunk;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Compare two strings for a native <tt>strcmp()</tt>, which compares
+	 * signed characters and returns -1, 0 or 1. The result is left in
+	 * <tt>stringComparison</tt>.
+	 * 
+	 * @return the number of characters compared, or -1 to decline.
+	 */
+	private long compareStrings(int a, int b) {
+		long compared = 0;
+
+		while (compared < 0x100000000L) {
+			int pa = probe(a, false), pb = probe(b, false);
+			if (pa == -1 || pb == -1)
+				return -1;
+
+			int chunk = Math.min(pageSize - offsetFromAddress(a), pageSize
+					- offsetFromAddress(b));
+			for (int i = 0; i < chunk; i++) {
+				byte ca = memoryWords.get(pa + i), cb = memoryWords.get(pb + i);
+
+				if (ca != cb || ca == 0) {
+					stringComparison = (ca < cb) ? -1 : (ca > cb) ? 1 : 0;
+					return compared + i + 1;
+				}
+			}
+
+			a += chunk;
+			b += chunk;
+			compared += chunk;
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Fetch the instruction at <i>vaddr</i> for a compiled block, and check
+	 * that it is still the word the block was compiled from. If it is not, or
+	 * if the fetch traps, write back the state the block has kept to itself
+	 * so far. A changed instruction is then run by the interpreter.
+	 * 
+	 * @param vaddr the virtual address of the instruction.
+	 * @param word the instruction word the block expects.
+	 * @param nextPC the value of the next PC register at this instruction.
+	 * @param instructions the instructions retired but not yet counted.
+	 * @param branches the branches retired but not yet counted.
+	 * @return <tt>true</tt> if the block may go on.
+	 */
+	boolean blockFetch(int vaddr, int word, int nextPC, int instructions,
+			int branches) throws MipsException {
+		int paddr;
+		try {
+			paddr = translateRead(vaddr, 4, true);
+		}
+		catch (MipsException e) {
+			registers[regPC] = vaddr;
+			registers[regNextPC] = nextPC;
+			blockRetire(instructions, branches, 0);
+			throw e;
+		}
+
+		int value = readPhysMem(paddr, 4);
+		if (value == word)
+			return true;
+
+		registers[regPC] = vaddr;
+		registers[regNextPC] = nextPC;
+		blockRetire(instructions, branches, 0);
+
+		blockInstruction.run(paddr, value);
+		return false;
 	}
 
 	/**
-	 * Read </i>size</i> (1, 2, or 4) bytes of virtual memory at <i>vaddr</i>,
-	 * and return the result.
-	 * 
-	 * @param vaddr the virtual address to read from.
-	 * @param size the number of bytes to read (1, 2, or 4).
-	 * @return the value read.
-	 * @exception MipsException if a translation error occurred.
+	 * Load <i>size</i> bytes at <i>vaddr</i> for a compiled block, and extend
+	 * them like the interpreter does.
 	 */
-	private int readMem(int vaddr, int size) throws MipsException {
-		if (Lib.test(dbgProcessor))
-			System.out.println("\treadMem vaddr=0x" + Lib.toHexString(vaddr)
-					+ ", size=" + size);
+	int blockLoad(int vaddr, int size, boolean unsigned) throws MipsException {
+		int value = readMem(vaddr, size);
+		numLoads++;
 
-		Lib.assertTrue(size == 1 || size == 2 || size == 4);
+		return unsigned ? value : Lib.extend(value, 0, size * 8);
+	}
 
-		int value = Lib.bytesToInt(mainMemory, translate(vaddr, size, false),
-				size);
+	/** Store <i>size</i> bytes at <i>vaddr</i> for a compiled block. */
+	void blockStore(int vaddr, int size, int value) throws MipsException {
+		writeMem(vaddr, size, value);
+		numStores++;
+	}
 
-		if (Lib.test(dbgProcessor))
-			System.out.println("\t\tvalue read=0x"
-					+ Lib.toHexString(value, size * 2));
+	/** Start a delayed load of a whole register for a compiled block. */
+	void blockDelayedLoad(int target, int value) {
+		delayedLoad(target, value, -1);
+	}
 
-		return value;
+	/** Complete the delayed load in progress for a compiled block. */
+	void blockFinishLoad() {
+		finishLoad();
 	}
 
 	/**
-	 * Write <i>value</i> to </i>size</i> (1, 2, or 4) bytes of virtual memory
-	 * starting at <i>vaddr</i>.
+	 * Count the instructions and branches a compiled block retired, and the
+	 * fetches it knew would hit the cache of recent translations.
+	 */
+	void blockRetire(int instructions, int branches, int fetches) {
+		numRetired += instructions;
+		numBranches += branches;
+
+		if (usingTLB)
+			privilege.stats.numTLBHits += fetches;
+	}
+
+	/**
+	 * Run an instruction a compiled block does not inline. The block has
+	 * already fetched it and written back its own state.
 	 * 
-	 * @param vaddr the virtual address to write to.
-	 * @param size the number of bytes to write (1, 2, or 4).
-	 * @param value the value to store.
-	 * @exception MipsException if a translation error occurred.
+	 * @param offset the offset of the instruction from the start of the
+	 * block.
+	 * @param word the instruction.
 	 */
-	private void writeMem(int vaddr, int size, int value) throws MipsException {
-		if (Lib.test(dbgProcessor))
-			System.out.println("\twriteMem vaddr=0x" + Lib.toHexString(vaddr)
-					+ ", size=" + size + ", value=0x"
-					+ Lib.toHexString(value, size * 2));
+	void blockInterpret(int offset, int word) throws MipsException {
+		blockInstruction.run(blockBase + offset, word);
+	}
 
-		Lib.assertTrue(size == 1 || size == 2 || size == 4);
+	/** Return the trap for an arithmetic overflow in a compiled block. */
+	MipsException blockOverflow() {
+		return trap(exceptionOverflow);
+	}
 
-		Lib.bytesFromInt(mainMemory, translate(vaddr, size, true), size, value);
+	private DecodedPage getDecodedPage(int ppn) {
+		DecodedPage page = decodedPages[ppn];
+		if (page == null) {
+			page = new DecodedPage();
+			decodedPages[ppn] = page;
+		}
+		return page;
 	}
 
 	/**
@@ -481,6 +1435,39 @@ public final class Processor {
 	/** Caused by an attempt to execute an illegal instruction. */
 	public static final int exceptionIllegalInstruction = 7;
 
+	/** Retired instructions. */
+	public static final int counterInstructions = 0;
+
+	/** Simulated time spent in user mode. */
+	public static final int counterUserTicks = 1;
+
+	/** Simulated time spent in kernel mode. */
+	public static final int counterKernelTicks = 2;
+
+	/** Retired loads, including <tt>lwl</tt>, <tt>lwr</tt> and <tt>ll</tt>. */
+	public static final int counterLoads = 3;
+
+	/**
+	 * Retired stores, including <tt>swl</tt>, <tt>swr</tt> and <tt>sc</tt>,
+	 * whether or not the <tt>sc</tt> succeeded.
+	 */
+	public static final int counterStores = 4;
+
+	/** Retired branches and jumps, whether taken or not. */
+	public static final int counterBranches = 5;
+
+	/** TLB misses. */
+	public static final int counterTLBMisses = 6;
+
+	/** Page faults. */
+	public static final int counterPageFaults = 7;
+
+	/** Syscalls. */
+	public static final int counterSyscalls = 8;
+
+	/** The number of performance counters. */
+	public static final int numCounters = 9;
+
 	/** The names of the CPU exceptions. */
 	public static final String exceptionNames[] = { "syscall      ",
 			"page fault   ", "TLB miss     ", "read-only    ", "bus error    ",
@@ -552,12 +1539,30 @@ public final class Processor {
 	/** Number of TLB entries. */
 	private int tlbSize = 4;
 
+	/** Number of TLB entries in each set. */
+	private int tlbWays = 4;
+
+	/** The address space identifier of the running process. */
+	private int asid = 0;
+
 	/**
 	 * Either an associative or direct-mapped set of translation entries,
 	 * depending on whether there is a TLB.
 	 */
 	private TranslationEntry[] translations;
 
+	/** Number of recent translations cached by <tt>translate()</tt>. */
+	private static final int microTLBSize = 8;
+
+	/** The virtual page cached in each slot, or -1 if the slot is empty. */
+	private int[] microVPN = new int[microTLBSize];
+
+	/** The translation entry cached in each slot. */
+	private TranslationEntry[] microEntry = new TranslationEntry[microTLBSize];
+
+	/** The physical address of the page cached in each slot. */
+	private int[] microBase = new int[microTLBSize];
+
 	/** Size of a page, in bytes. */
 	public static final int pageSize = 0x400;
 
@@ -567,9 +1572,93 @@ public final class Processor {
 	/** Number of physical pages in memory. */
 	private int numPhysPages;
 
-	/** Main memory for user programs. */
+	/** The size of main memory, in bytes. */
+	private int memorySize;
+
+	/**
+	 * Main memory for user programs, or <tt>null</tt> if it is kept outside
+	 * the Java heap.
+	 */
 	private byte[] mainMemory;
 
+	/** A little-endian view of main memory, used for all processor access. */
+	private ByteBuffer memoryWords;
+
+	/**
+	 * Predecoded instructions, indexed by physical page number, or
+	 * <tt>null</tt> if the decode cache is disabled.
+	 */
+	private DecodedPage[] decodedPages;
+
+	/** <tt>true</tt> if hot basic blocks are compiled to JVM classes. */
+	private boolean usingJIT;
+
+	/** Number of times a block is entered before it is compiled. */
+	private int jitThreshold;
+
+	/**
+	 * The compiler for hot blocks, or <tt>null</tt>
+	 * unless <tt>Processor.jit</tt> is set.
+	 */
+	private final BlockCompiler blockCompiler;
+
+	/** Runs the instructions a compiled block leaves to the interpreter. */
+	private final Instruction blockInstruction = new Instruction();
+
+	/** The physical address of the block being run. */
+	private int blockBase;
+
+	/**
+	 * The physical address of the word linked by the last <tt>ll</tt>, or -1
+	 * if the link has been broken.
+	 */
+	private int linkAddress = -1;
+
+	/** The number of instructions this processor has completed. */
+	private long numRetired = 0;
+
+	/** Performance counters; see <tt>readCounter()</tt>. */
+	private long numLoads = 0, numStores = 0, numBranches = 0;
+
+	private int numTLBMisses = 0, numPageFaults = 0, numSyscalls = 0;
+
+	/**
+	 * The profiler, or <tt>null</tt> unless
+	 * <tt>Processor.profile</tt> is set.
+	 */
+	final Profiler profiler;
+
+	/** The profiler's call tree for the current address space. */
+	private Profiler.Context profileContext;
+
+	/**
+	 * The library routines found in each physical page, or <tt>null</tt>
+	 * unless <tt>Processor.hypercalls</tt> is set.
+	 */
+	private HypercallPage[] hypercallPages;
+
+	/** Instructions charged for each native call, and for each byte. */
+	private int hypercallCallCost, hypercallByteCost;
+
+	/** Staging for native copies; one page is the largest chunk. */
+	private byte[] hypercallBuffer = new byte[pageSize];
+
+	/** The result of the last native <tt>strcmp()</tt>. */
+	private int stringComparison;
+
+	/** The library routines the processor can run natively. */
+	private static final String[] hypercallNames = { "memcpy", "memset",
+			"strlen", "strcmp" };
+
+	private static final int hypercallMemcpy = 0, hypercallMemset = 1,
+			hypercallStrlen = 2, hypercallStrcmp = 3;
+
+	/** Maximum number of instructions in a compiled block. */
+	private static final int maxBlockLength = 64;
+
+	/** The exception thrown for every trap taken by this processor. */
+	private final MipsException pendingTrap = new MipsException();
+
 	/** The kernel exception handler, called on every user exception. */
 	private Runnable exceptionHandler = null;
 
@@ -582,24 +1671,63 @@ public final class Processor {
 	private class ProcessorPrivilege implements Privilege.ProcessorPrivilege {
 		public void flushPipe() {
 			finishLoad();
+
+			// the interrupt handler may change translations
+			invalidateTranslations();
+			clearLink();
 		}
 	}
 
-	private class MipsException extends Exception {
-		public MipsException(int cause) {
-			Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
+	/**
+	 * Record a trap and return the exception to throw for it. Traps are
+	 * frequent (every syscall and page fault), so rather than allocating a
+	 * new exception and filling in its stack trace each time, the processor
+	 * reuses a single stackless <tt>MipsException</tt>. This is safe because
+	 * only one thread runs on the processor at a time, and
+	 * <tt>handle()</tt> reads the trap before any kernel code can run.
+	 * 
+	 * @param cause the cause of the exception.
+	 * @return the exception describing the trap.
+	 */
+	private MipsException trap(int cause) {
+		Lib.assertTrue(cause >= 0 && cause < exceptionNames.length);
+
+		pendingTrap.cause = cause;
+		pendingTrap.hasBadVAddr = false;
+
+		return pendingTrap;
+	}
+
+	/**
+	 * Record a trap caused by an access to the specified virtual address, and
+	 * return the exception to throw for it.
+	 * 
+	 * @param cause the cause of the exception.
+	 * @param badVAddr the virtual address that caused the exception.
+	 * @return the exception describing the trap.
+	 */
+	private MipsException trap(int cause, int badVAddr) {
+		trap(cause);
 
-			this.cause = cause;
-		}
+		pendingTrap.hasBadVAddr = true;
+		pendingTrap.badVAddr = badVAddr;
 
-		public MipsException(int cause, int badVAddr) {
-			this(cause);
+		return pendingTrap;
+	}
 
-			hasBadVAddr = true;
-			this.badVAddr = badVAddr;
+	class MipsException extends Exception {
+		public MipsException() {
+			// traps are control flow, so skip the stack trace
+			super(null, null, false, false);
 		}
 
 		public void handle() {
+			int cause = this.cause;
+
+			// the kernel may change translations
+			invalidateTranslations();
+			clearLink();
+
 			writeRegister(regCause, cause);
 
 			if (hasBadVAddr)
@@ -624,13 +1752,132 @@ public final class Processor {
 		private int cause, badVAddr;
 	}
 
+	/**
+	 * The decoded form of every instruction word fetched from a single
+	 * physical page. Entries are filled lazily by <tt>Instruction.decode()</tt>
+	 * and are only valid while <tt>word</tt> still matches memory.
+	 */
+	static final class DecodedPage {
+		/** The raw instruction word each entry was decoded from. */
+		final int[] word = new int[wordsPerPage];
+
+		/** The resolved opcode table entry, or <tt>null</tt> if empty. */
+		final Mips[] info = new Mips[wordsPerPage];
+
+		/** Packed rs, rt, rd, sh, access size and destination register. */
+		final int[] fields = new int[wordsPerPage];
+
+		/** The sign-extended immediate field. */
+		final int[] imm = new int[wordsPerPage];
+
+		/** Number of times a block was entered at each word. */
+		final int[] heat = new int[wordsPerPage];
+
+		/** The compiled block starting at each word, or <tt>null</tt>. */
+		final BlockCompiler.Block[] blocks =
+				new BlockCompiler.Block[wordsPerPage];
+
+		static final int wordsPerPage = pageSize / 4;
+	}
+
+	/**
+	 * The entry points of the library routines found in a single physical
+	 * page, with the instruction words each one started with when the page
+	 * was loaded.
+	 */
+	private static final class HypercallPage {
+		void add(int offset, int routine, int[] signature) {
+			offsets = Arrays.copyOf(offsets, offsets.length + 1);
+			routines = Arrays.copyOf(routines, routines.length + 1);
+			signatures = Arrays.copyOf(signatures, signatures.length + 1);
+
+			offsets[offsets.length - 1] = offset;
+			routines[routines.length - 1] = routine;
+			signatures[signatures.length - 1] = signature;
+		}
+
+		/**
+		 * Return the routine whose entry point is at the specified offset, if
+		 * its code is still in memory at <i>paddr</i>, or -1.
+		 */
+		int lookup(int offset, ByteBuffer memory, int paddr) {
+			for (int i = 0; i < offsets.length; i++) {
+				if (offsets[i] != offset)
+					continue;
+
+				int[] signature = signatures[i];
+				for (int j = 0; j < signature.length; j++) {
+					if (memory.getInt(paddr + j * 4) != signature[j])
+						return -1;
+				}
+
+				return routines[i];
+			}
+
+			return -1;
+		}
+
+		int[] offsets = new int[0];
+
+		int[] routines = new int[0];
+
+		int[][] signatures = new int[0][];
+
+		static final int signatureLength = 4;
+	}
+
 	private class Instruction {
 		public void run() throws MipsException {
 			// hopefully this looks familiar to 152 students?
+			fetch();
+			if (hypercallPages != null && runHypercall(paddr))
+				return;
+
+			decode();
+			execute();
+			writeBack();
+		}
+
+		/**
+		 * Run a single instruction and count it with the profiler. An
+		 * instruction that traps is counted again when it is restarted.
+		 */
+		public void runProfiled() throws MipsException {
 			fetch();
 			decode();
+
+			int pc = paddr;
+
+			int kind;
+			switch (operation) {
+			case Mips.LOAD:
+			case Mips.LWL:
+			case Mips.LWR:
+			case Mips.LL:
+				kind = Profiler.LOAD;
+				break;
+			case Mips.STORE:
+			case Mips.SWL:
+			case Mips.SWR:
+			case Mips.SC:
+				kind = Profiler.STORE;
+				break;
+			default:
+				kind = test(Mips.BRANCH) ? Profiler.BRANCH : Profiler.OTHER;
+				break;
+			}
+
+			profiler.count(profileContext, pc,
+					Mips.lookup(op, rt, func).opcode, name, kind);
+
 			execute();
 			writeBack();
+
+			if (test(Mips.LINK) && branch)
+				profiler.call(profileContext, pc, jtarget);
+			else if (operation == Mips.JUMP && format == Mips.RFMT
+					&& rs == regRA)
+				profiler.ret(profileContext);
 		}
 
 		private boolean test(int flag) {
@@ -643,10 +1890,194 @@ public final class Processor {
 				System.out.print("PC=0x" + Lib.toHexString(registers[regPC])
 						+ "\t");
 
-			value = readMem(registers[regPC], 4);
+			paddr = translateRead(registers[regPC], 4, true);
+			value = readPhysMem(paddr, 4);
+		}
+
+		/**
+		 * Run the instruction word already fetched from <i>paddr</i>.
+		 */
+		public void run(int paddr, int value) throws MipsException {
+			this.paddr = paddr;
+			this.value = value;
+
+			decode();
+			execute();
+			writeBack();
+		}
+
+		/**
+		 * Run at most <i>limit</i> instructions of the basic block starting at
+		 * the current PC. Blocks are counted on entry, and once a block has
+		 * been entered <tt>jitThreshold</tt> times, it is compiled to a JVM
+		 * class, which later entries run instead of the interpreter.
+		 * 
+		 * <p>
+		 * A block only runs if it was compiled for the current PC and from the
+		 * instructions now in memory. It leaves the same statistics and the
+		 * same translations cached as the interpreter would; see
+		 * <tt>BlockCompiler</tt>. The caller only passes a limit that no
+		 * interrupt can become due within.
+		 * 
+		 * @param limit the maximum number of instructions to run.
+		 */
+		public void runBlock(long limit) throws MipsException {
+			if (Lib.test(dbgProcessor) || Lib.test(dbgDisassemble)
+					|| Lib.test(dbgFullDisassemble)) {
+				run();
+				return;
+			}
+
+			int startPC = registers[regPC];
+
+			fetch();
+			if (hypercallPages != null && runHypercall(paddr))
+				return;
+
+			DecodedPage page = getDecodedPage(paddr / pageSize);
+			int index = (paddr % pageSize) / 4;
+
+			BlockCompiler.Block block = page.blocks[index];
+			if (block != null && !isCurrent(block, startPC)) {
+				page.blocks[index] = block = null;
+				page.heat[index] = 0;
+			}
+
+			if (block == null && ++page.heat[index] == jitThreshold)
+				block = compileBlock(page, index, startPC);
+
+			if (block != null && block.words.length <= limit
+					&& registers[regNextPC] == startPC + 4) {
+				blockBase = paddr;
+				block.run(Processor.this, registers);
+				return;
+			}
+
+			decode(page, index);
+			execute();
+			writeBack();
+		}
+
+		/**
+		 * Test whether a block was compiled for the current PC, and from the
+		 * instructions now in memory. The kernel may have written the page of
+		 * code through <tt>getMemory()</tt>.
+		 */
+		private boolean isCurrent(BlockCompiler.Block block, int startPC) {
+			if (block.vaddr != startPC)
+				return false;
+
+			for (int i = 0; i < block.words.length; i++) {
+				if (memoryWords.getInt(paddr + i * 4) != block.words[i])
+					return false;
+			}
+
+			return true;
+		}
+
+		/**
+		 * Compile the basic block starting at the specified word, which holds
+		 * the current instruction. A block ends at the end of the page, and
+		 * before the next library routine the processor runs natively.
+		 * 
+		 * @return the compiled block, or <tt>null</tt> if it cannot be
+		 * compiled.
+		 */
+		private BlockCompiler.Block compileBlock(DecodedPage page, int index,
+				int vaddr) {
+			int pageBase = paddr - (paddr % pageSize);
+
+			int end = Math.min(DecodedPage.wordsPerPage, index
+					+ maxBlockLength);
+			if (hypercallPages != null
+					&& hypercallPages[paddr / pageSize] != null) {
+				for (int offset : hypercallPages[paddr / pageSize].offsets) {
+					if (offset / 4 > index && offset / 4 < end)
+						end = offset / 4;
+				}
+			}
+
+			int savedValue = value;
+			for (int i = index; i < end; i++) {
+				value = memoryWords.getInt(pageBase + i * 4);
+				if (page.info[i] == null || page.word[i] != value)
+					storeDecoded(page, i);
+			}
+			value = savedValue;
+
+			BlockCompiler.Block block = blockCompiler.compile(page, index,
+					end, vaddr);
+			page.blocks[index] = block;
+			return block;
 		}
 
 		private void decode() {
+			if (decodedPages == null) {
+				decodeWord();
+				decodeOperands();
+			}
+			else {
+				decode(getDecodedPage(paddr / pageSize),
+						(paddr % pageSize) / 4);
+			}
+		}
+
+		private void decode(DecodedPage page, int index) {
+			if (page.info[index] != null && page.word[index] == value)
+				loadDecoded(page, index);
+			else
+				storeDecoded(page, index);
+
+			decodeOperands();
+		}
+
+		/**
+		 * Load the register-independent fields of the current instruction
+		 * from the decode cache.
+		 */
+		private void loadDecoded(DecodedPage page, int index) {
+			Mips info = page.info[index];
+			int packed = page.fields[index];
+
+			op = value >>> 26;
+			rs = packed & 0x1F;
+			rt = (packed >>> 5) & 0x1F;
+			rd = (packed >>> 10) & 0x1F;
+			sh = (packed >>> 15) & 0x1F;
+			func = value & 0x3F;
+			target = value & 0x3FFFFFF;
+			imm = page.imm[index];
+
+			operation = info.operation;
+			name = info.name;
+			format = info.format;
+			flags = info.flags;
+
+			size = (packed >>> 20) & 0x7;
+			dstReg = ((packed >>> 23) & 0x3F) - 1;
+		}
+
+		/**
+		 * Decode the current instruction word and store the result in the
+		 * decode cache.
+		 */
+		private void storeDecoded(DecodedPage page, int index) {
+			Mips info = decodeWord();
+
+			page.word[index] = value;
+			page.info[index] = info;
+			page.fields[index] = rs | (rt << 5) | (rd << 10) | (sh << 15)
+					| (size << 20) | ((dstReg + 1) << 23);
+			page.imm[index] = imm;
+		}
+
+		/**
+		 * Decode the fields of the current instruction word that do not depend
+		 * on register contents.
+		 * 
+		 * @return the opcode table entry for the instruction.
+		 */
+		private Mips decodeWord() {
 			op = Lib.extract(value, 26, 6);
 			rs = Lib.extract(value, 21, 5);
 			rt = Lib.extract(value, 16, 5);
@@ -656,27 +2087,13 @@ public final class Processor {
 			target = Lib.extract(value, 0, 26);
 			imm = Lib.extend(value, 0, 16);
 
-			Mips info;
-			switch (op) {
-			case 0:
-				info = Mips.specialtable[func];
-				break;
-			case 1:
-				info = Mips.regimmtable[rt];
-				break;
-			default:
-				info = Mips.optable[op];
-				break;
-			}
+			Mips info = Mips.lookup(op, rt, func);
 
 			operation = info.operation;
 			name = info.name;
 			format = info.format;
 			flags = info.flags;
 
-			mask = 0xFFFFFFFF;
-			branch = true;
-
 			// get memory access size
 			if (test(Mips.SIZEB))
 				size = 1;
@@ -687,9 +2104,6 @@ public final class Processor {
 			else
 				size = 0;
 
-			// get nextPC
-			nextPC = registers[regNextPC] + 4;
-
 			// get dstReg
 			if (test(Mips.DSTRA))
 				dstReg = regRA;
@@ -700,6 +2114,20 @@ public final class Processor {
 			else
 				dstReg = -1;
 
+			return info;
+		}
+
+		/**
+		 * Decode the parts of the current instruction that depend on register
+		 * contents.
+		 */
+		private void decodeOperands() {
+			mask = 0xFFFFFFFF;
+			branch = true;
+
+			// get nextPC
+			nextPC = registers[regNextPC] + 4;
+
 			// get jtarget
 			if (format == Mips.RFMT)
 				jtarget = registers[rs];
@@ -886,7 +2314,7 @@ public final class Processor {
 						throw new ArithmeticException();
 				}
 				catch (ArithmeticException e) {
-					throw new MipsException(exceptionOverflow);
+					throw trap(exceptionOverflow);
 				}
 				break;
 
@@ -956,10 +2384,12 @@ public final class Processor {
 				break;
 
 			case Mips.SYSCALL:
-				throw new MipsException(exceptionSyscall);
+				numSyscalls++;
+				throw trap(exceptionSyscall);
 
 			case Mips.LOAD:
 				value = readMem(addr, size);
+				numLoads++;
 
 				if (!test(Mips.UNSIGNED))
 					dst = Lib.extend(value, 0, size * 8);
@@ -970,6 +2400,7 @@ public final class Processor {
 
 			case Mips.LWL:
 				value = readMem(addr & ~0x3, 4);
+				numLoads++;
 
 				// LWL shifts the input left so the addressed byte is highest
 				preserved = (3 - (addr & 0x3)) * 8; // number of bits to
@@ -982,6 +2413,7 @@ public final class Processor {
 
 			case Mips.LWR:
 				value = readMem(addr & ~0x3, 4);
+				numLoads++;
 
 				// LWR shifts the input right so the addressed byte is lowest
 				preserved = (addr & 0x3) * 8; // number of bits to preserve
@@ -993,6 +2425,7 @@ public final class Processor {
 
 			case Mips.STORE:
 				writeMem(addr, size, (int) src2);
+				numStores++;
 				break;
 
 			case Mips.SWL:
@@ -1007,6 +2440,7 @@ public final class Processor {
 				dst = (dst & mask) | (value & ~mask);
 
 				writeMem(addr & ~0x3, 4, (int) dst);
+				numStores++;
 				break;
 
 			case Mips.SWR:
@@ -1021,13 +2455,40 @@ public final class Processor {
 				dst = (dst & mask) | (value & ~mask);
 
 				writeMem(addr & ~0x3, 4, (int) dst);
+				numStores++;
+				break;
+
+			case Mips.LL:
+				// like lw, but link the word, and without a load delay
+				linked = translateRead(addr, 4, false);
+				dst = readPhysMem(linked, 4);
+				numLoads++;
+
+				setLink(linked);
+				break;
+
+			case Mips.SC:
+				// translate as a store even if the link is broken, so that a
+				// bad address traps, and store only if nothing has written the
+				// word since the ll
+				linked = translate(addr, 4, true, false);
+				if (linked == linkAddress) {
+					writePhysMem(linked, 4, (int) src2);
+					dst = 1;
+				}
+				else {
+					dst = 0;
+				}
+				numStores++;
+
+				clearLink();
 				break;
 
 			case Mips.UNIMPL:
 				System.err.println("Warning: encountered unimplemented inst");
 
 			case Mips.INVALID:
-				throw new MipsException(exceptionIllegalInstruction);
+				throw trap(exceptionIllegalInstruction);
 
 			default:
 				Lib.assertNotReached();
@@ -1037,7 +2498,7 @@ public final class Processor {
 		private void writeBack() throws MipsException {
 			// if instruction is signed, but carry bit !+ sign bit, throw
 			if (test(Mips.OVERFLOW) && Lib.test(dst, 31) != Lib.test(dst, 32))
-				throw new MipsException(exceptionOverflow);
+				throw trap(exceptionOverflow);
 
 			if (test(Mips.DELAYEDLOAD))
 				delayedLoad(dstReg, (int) dst, mask);
@@ -1058,11 +2519,14 @@ public final class Processor {
 				}
 			}
 
-			if (test(Mips.BRANCH) && branch) {
-				nextPC = jtarget;
+			if (test(Mips.BRANCH)) {
+				numBranches++;
+				if (branch)
+					nextPC = jtarget;
 			}
 
 			advancePC(nextPC);
+			numRetired++;
 
 			if ((Lib.test(dbgDisassemble) && !Lib.test(dbgProcessor))
 					|| Lib.test(dbgFullDisassemble))
@@ -1070,7 +2534,7 @@ public final class Processor {
 		}
 
 		// state used to execute a single instruction
-		int value, op, rs, rt, rd, sh, func, target, imm;
+		int paddr, value, op, rs, rt, rd, sh, func, target, imm;
 
 		int operation, format, flags;
 
@@ -1084,13 +2548,35 @@ public final class Processor {
 
 		int mask;
 
+		int linked;
+
 		boolean branch;
 	}
 
-	private static class Mips {
+	static class Mips {
 		Mips() {
 		}
 
+		/**
+		 * Find the opcode table entry for an instruction.
+		 */
+		static Mips lookup(int op, int rt, int func) {
+			switch (op) {
+			case 0:
+				return specialtable[func];
+			case 1:
+				return regimmtable[rt];
+			default:
+				return optable[op];
+			}
+		}
+
+		/** The number of opcode table entries, counting each invalid one. */
+		static int numOpcodes;
+
+		/** This entry's position in the opcode tables. */
+		final int opcode = numOpcodes++;
+
 		Mips(int operation, String name) {
 			this.operation = operation;
 			this.name = name;
@@ -1116,7 +2602,8 @@ public final class Processor {
 				NOR = 12, XOR = 13, LUI = 14, MFLO = 21, MFHI = 22, MTLO = 23,
 				MTHI = 24, JUMP = 25, BEQ = 26, BNE = 27, BLEZ = 28, BGTZ = 29,
 				BLTZ = 30, BGEZ = 31, SYSCALL = 32, LOAD = 33, LWL = 36,
-				LWR = 37, STORE = 38, SWL = 39, SWR = 40, MAX = 40;
+				LWR = 37, STORE = 38, SWL = 39, SWR = 40, LL = 41, SC = 42,
+				MAX = 42;
 
 		static final int IFMT = 1, JFMT = 2, RFMT = 3;
 
@@ -1167,9 +2654,10 @@ public final class Processor {
 				new Mips(SWL, "swl ta", IFMT, 0),
 				new Mips(STORE, "sw ta", IFMT, SIZEW), new Mips(), new Mips(),
 				new Mips(SWR, "swr ta", IFMT, 0), new Mips(),
-				new Mips(UNIMPL, "ll "), new Mips(), new Mips(), new Mips(),
-				new Mips(), new Mips(), new Mips(), new Mips(),
-				new Mips(UNIMPL, "sc "), new Mips(), new Mips(), new Mips(),
+				new Mips(LL, "ll ta", IFMT, DST | SIZEW), new Mips(),
+				new Mips(), new Mips(), new Mips(), new Mips(), new Mips(),
+				new Mips(), new Mips(SC, "sc ta", IFMT, DST | SIZEW),
+				new Mips(), new Mips(), new Mips(),
 				new Mips(), new Mips(), new Mips(), new Mips(), };
 
 		static final Mips[] specialtable = {
@@ -0,0 +1,422 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * A <tt>Profiler</tt> counts the user instructions run by the processor. It
+ * is enabled by the <tt>Processor.profile</tt> key; otherwise the processor
+ * never creates one, and runs exactly as it would without it.
+ * 
+ * <p>
+ * Instructions are counted by physical address, and each page of code is
+ * attributed to the COFF executable that loaded it, so every program gets its
+ * own profile even though all programs use the same virtual addresses. The
+ * profiler also counts the opcode mix, and follows calls and returns to build
+ * a call tree for each address space.
+ * 
+ * <p>
+ * When the machine halts, the profiler prints the hottest procedures and the
+ * opcode mix, and writes the call tree in the collapsed stack format read by
+ * flame graph tools to the file named by <tt>Processor.profileStacks</tt>.
+ * Procedures are named from the COFF symbol table. An executable without
+ * symbols has its procedures named by address instead, using the entry point
+ * and the call targets seen while profiling.
+ */
+public final class Profiler {
+	/**
+	 * Allocate a new profiler.
+	 * 
+	 * @param privilege encapsulates privileged access to the Nachos machine.
+	 * @param numPhysPages the number of pages of physical memory.
+	 * @param numOpcodes the number of distinct opcodes.
+	 */
+	Profiler(Privilege privilege, int numPhysPages, int numOpcodes) {
+		this.privilege = privilege;
+
+		counts = new long[numPhysPages * wordsPerPage];
+		owners = new Image[numPhysPages];
+		ownerVPNs = new int[numPhysPages];
+
+		opcodeCounts = new long[numOpcodes];
+		opcodeNames = new String[numOpcodes];
+
+		stackFileName = Config.getString("Processor.profileStacks",
+				"nachos.folded");
+	}
+
+	/**
+	 * Record that a page of code has been loaded from an executable. Counts
+	 * for the code the physical page held before are first credited to the
+	 * executable that code came from.
+	 * 
+	 * @param coff the executable.
+	 * @param vpn the virtual page the code was linked at.
+	 * @param ppn the physical page it was loaded into.
+	 */
+	void mapPage(Coff coff, int vpn, int ppn) {
+		flushPage(ppn);
+
+		String name = coff.getName();
+		Image image = images.get(name);
+		if (image == null) {
+			image = new Image(name, coff.getSymbolTable());
+			image.entries.add(coff.getEntryPoint());
+			images.put(name, image);
+		}
+
+		owners[ppn] = image;
+		ownerVPNs[ppn] = vpn;
+	}
+
+	/**
+	 * Return the call tree of the specified address space, creating it if
+	 * this is the first time the address space has run.
+	 * 
+	 * @param addressSpace an object identifying the address space.
+	 * @return the call tree.
+	 */
+	Context getContext(Object addressSpace) {
+		Context context = contexts.get(addressSpace);
+		if (context == null) {
+			context = new Context();
+			contexts.put(addressSpace, context);
+		}
+
+		return context;
+	}
+
+	/**
+	 * Count one instruction.
+	 * 
+	 * @param context the call tree of the running address space.
+	 * @param paddr the physical address of the instruction.
+	 * @param opcode the opcode number.
+	 * @param name the name of the opcode, followed by its operand format.
+	 * @param kind <tt>LOAD</tt>, <tt>STORE</tt>, <tt>BRANCH</tt> or
+	 * <tt>OTHER</tt>.
+	 */
+	void count(Context context, int paddr, int opcode, String name, int kind) {
+		counts[paddr >>> 2]++;
+
+		Frame frame = context.current;
+		frame.count++;
+		if (frame.image == null)
+			frame.image = owners[paddr / Processor.pageSize];
+
+		opcodeCounts[opcode]++;
+		if (opcodeNames[opcode] == null)
+			opcodeNames[opcode] = name.substring(0, name.indexOf(' '));
+
+		kindCounts[kind]++;
+	}
+
+	/**
+	 * Record a taken call.
+	 * 
+	 * @param context the call tree of the running address space.
+	 * @param paddr the physical address of the call instruction.
+	 * @param target the virtual address of the procedure being called.
+	 */
+	void call(Context context, int paddr, int target) {
+		Frame frame = context.current;
+
+		if (frame.depth == maxDepth) {
+			context.overflow++;
+			return;
+		}
+
+		Frame child = frame.children.get(target);
+		if (child == null) {
+			Image image = owners[paddr / Processor.pageSize];
+
+			child = new Frame(image, target, frame);
+			frame.children.put(target, child);
+
+			if (image != null)
+				image.entries.add(target);
+		}
+
+		context.current = child;
+	}
+
+	/**
+	 * Record a return.
+	 * 
+	 * @param context the call tree of the running address space.
+	 */
+	void ret(Context context) {
+		if (context.overflow > 0)
+			context.overflow--;
+		else if (context.current.parent != null)
+			context.current = context.current.parent;
+	}
+
+	/**
+	 * Print the profile, and write the call trees to the stack file.
+	 */
+	void report() {
+		for (int ppn = 0; ppn < owners.length; ppn++)
+			flushPage(ppn);
+
+		long total = 0;
+		for (int i = 0; i < kindCounts.length; i++)
+			total += kindCounts[i];
+
+		System.out.println("Profile: " + total + " instructions, loads "
+				+ percent(kindCounts[LOAD], total) + ", stores "
+				+ percent(kindCounts[STORE], total) + ", branches "
+				+ percent(kindCounts[BRANCH], total));
+
+		if (total == 0)
+			return;
+
+		HashMap<String, Long> procedures = new HashMap<String, Long>();
+		for (Iterator<Image> i = images.values().iterator(); i.hasNext();) {
+			Image image = i.next();
+
+			for (int word = 0; word < image.counts.length; word++) {
+				if (image.counts[word] != 0)
+					add(procedures, image.name + " "
+							+ image.procedure(word * 4), image.counts[word]);
+			}
+		}
+		if (unattributed != 0)
+			add(procedures, "(unknown)", unattributed);
+
+		System.out.println("Hot procedures:");
+		printTop(procedures, total);
+
+		HashMap<String, Long> opcodes = new HashMap<String, Long>();
+		for (int i = 0; i < opcodeCounts.length; i++) {
+			if (opcodeCounts[i] != 0)
+				add(opcodes, opcodeNames[i], opcodeCounts[i]);
+		}
+
+		System.out.println("Opcode mix:");
+		printTop(opcodes, total);
+
+		final TreeMap<String, Long> stacks = new TreeMap<String, Long>();
+		for (Iterator<Context> i = contexts.values().iterator(); i.hasNext();) {
+			Frame root = i.next().root;
+			collapse(root, (root.image == null) ? "(unknown)" : root.image.name,
+					stacks);
+		}
+
+		privilege.doPrivileged(new Runnable() {
+			public void run() {
+				writeStacks(stacks);
+			}
+		});
+	}
+
+	/**
+	 * Credit the counts of a physical page to the executable that loaded it,
+	 * and clear them.
+	 */
+	private void flushPage(int ppn) {
+		Image image = owners[ppn];
+		int base = ppn * wordsPerPage;
+
+		for (int i = 0; i < wordsPerPage; i++) {
+			long count = counts[base + i];
+			if (count == 0)
+				continue;
+
+			if (image != null)
+				image.add(ownerVPNs[ppn] * wordsPerPage + i, count);
+			else
+				unattributed += count;
+
+			counts[base + i] = 0;
+		}
+	}
+
+	private void collapse(Frame frame, String stack, Map<String, Long> stacks) {
+		if (frame.count != 0)
+			add(stacks, stack, frame.count);
+
+		for (Iterator<Frame> i = frame.children.values().iterator(); i
+				.hasNext();) {
+			Frame child = i.next();
+			String name = (child.image == null) ? "0x"
+					+ Lib.toHexString(child.address) : child.image
+					.procedure(child.address);
+
+			collapse(child, stack + ";" + name, stacks);
+		}
+	}
+
+	private void writeStacks(Map<String, Long> stacks) {
+		try {
+			PrintWriter out = new PrintWriter(new FileWriter(stackFileName));
+			try {
+				for (Iterator<Map.Entry<String, Long>> i = stacks.entrySet()
+						.iterator(); i.hasNext();) {
+					Map.Entry<String, Long> stack = i.next();
+					out.println(stack.getKey() + " " + stack.getValue());
+				}
+			}
+			finally {
+				out.close();
+			}
+		}
+		catch (IOException e) {
+			System.err.println("Warning: could not write " + stackFileName);
+		}
+	}
+
+	private static void add(Map<String, Long> totals, String key, long count) {
+		Long old = totals.get(key);
+		totals.put(key, (old == null) ? count : old + count);
+	}
+
+	private static void printTop(Map<String, Long> totals, long total) {
+		ArrayList<Map.Entry<String, Long>> entries;
+		entries = new ArrayList<Map.Entry<String, Long>>(totals.entrySet());
+
+		Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+			public int compare(Map.Entry<String, Long> a,
+					Map.Entry<String, Long> b) {
+				int order = b.getValue().compareTo(a.getValue());
+				return (order != 0) ? order : a.getKey().compareTo(b.getKey());
+			}
+		});
+
+		for (int i = 0; i < entries.size() && i < hotListLength; i++) {
+			Map.Entry<String, Long> entry = entries.get(i);
+			System.out.println("  "
+					+ Lib.padLeft(percent(entry.getValue(), total), 7) + " "
+					+ Lib.padLeft("" + entry.getValue(), 12) + "  "
+					+ entry.getKey());
+		}
+	}
+
+	private static String percent(long count, long total) {
+		if (total == 0)
+			return "0.0%";
+
+		return Lib.toFixedString(100.0 * count / total, 1) + "%";
+	}
+
+	/** The code of one executable, with its counts by virtual address. */
+	private static class Image {
+		Image(String name, CoffSymbolTable symbols) {
+			this.name = name;
+			this.symbols = symbols;
+		}
+
+		void add(int word, long count) {
+			if (word >= counts.length)
+				counts = Arrays.copyOf(counts, Math.max(word + 1,
+						counts.length * 2));
+
+			counts[word] += count;
+		}
+
+		String procedure(int vaddr) {
+			if (symbols.getNumSymbols() > 0) {
+				int symbol = symbols.lookup(vaddr);
+				if (symbol != -1)
+					return symbols.getName(symbol);
+			}
+			else {
+				Integer entry = entries.floor(vaddr);
+				if (entry != null)
+					return "0x" + Lib.toHexString(entry);
+			}
+
+			return "(unknown)";
+		}
+
+		final String name;
+
+		final CoffSymbolTable symbols;
+
+		/** Known procedure addresses, for executables without symbols. */
+		final TreeSet<Integer> entries = new TreeSet<Integer>();
+
+		long[] counts = new long[0];
+	}
+
+	/** The call tree of one address space. */
+	static final class Context {
+		final Frame root = new Frame(null, 0, null);
+
+		Frame current = root;
+
+		/** Calls made below the maximum depth, which are not tracked. */
+		int overflow = 0;
+	}
+
+	/** A procedure in a call tree, reached by a particular path. */
+	private static final class Frame {
+		Frame(Image image, int address, Frame parent) {
+			this.image = image;
+			this.address = address;
+			this.parent = parent;
+			this.depth = (parent == null) ? 0 : parent.depth + 1;
+		}
+
+		Image image;
+
+		final int address;
+
+		final Frame parent;
+
+		final int depth;
+
+		final HashMap<Integer, Frame> children = new HashMap<Integer, Frame>();
+
+		/** Instructions run in this procedure itself. */
+		long count = 0;
+	}
+
+	/** Instruction kinds, for the load/store/branch ratios. */
+	static final int OTHER = 0, LOAD = 1, STORE = 2, BRANCH = 3;
+
+	private Privilege privilege;
+
+	/** Counts since each page was loaded, indexed by physical word. */
+	private long[] counts;
+
+	/** The executable each physical page of code was loaded from. */
+	private Image[] owners;
+
+	private int[] ownerVPNs;
+
+	/** Instructions run from pages of unknown origin. */
+	private long unattributed = 0;
+
+	private long[] opcodeCounts;
+
+	private String[] opcodeNames;
+
+	private long[] kindCounts = new long[4];
+
+	private HashMap<String, Image> images = new HashMap<String, Image>();
+
+	private HashMap<Object, Context> contexts = new HashMap<Object, Context>();
+
+	private String stackFileName;
+
+	private static final int wordsPerPage = Processor.pageSize / 4;
+
+	private static final int maxDepth = 256;
+
+	private static final int hotListLength = 20;
+}
@@ -8,6 +8,11 @@ import java.io.IOException;
 
 /**
  * A text-based console that uses System.in and System.out.
+ * 
+ * <p>
+ * If the interrupt controller may block on input, a background thread reads
+ * System.in and signals each byte it reads, so that an idle machine waiting
+ * for keystrokes does not have to keep polling.
  */
 public class StandardConsole implements SerialConsole {
 	/**
@@ -32,6 +37,24 @@ public class StandardConsole implements SerialConsole {
 			}
 		};
 
+		receiveHandle = privilege.interrupt.register("console read",
+				receiveInterrupt);
+		sendHandle = privilege.interrupt.register("console write",
+				sendInterrupt);
+
+		if (privilege.interrupt.blocksOnInput()) {
+			privilege.interrupt.setPollsInput(receiveHandle, true);
+
+			inputThread = new Thread(new Runnable() {
+				public void run() {
+					inputLoop();
+				}
+			});
+
+			inputThread.setDaemon(true);
+			inputThread.start();
+		}
+
 		scheduleReceiveInterrupt();
 	}
 
@@ -42,8 +65,7 @@ public class StandardConsole implements SerialConsole {
 	}
 
 	private void scheduleReceiveInterrupt() {
-		privilege.interrupt.schedule(Stats.ConsoleTime, "console read",
-				receiveInterrupt);
+		privilege.interrupt.schedule(receiveHandle, Stats.ConsoleTime);
 	}
 
 	/**
@@ -52,6 +74,9 @@ public class StandardConsole implements SerialConsole {
 	 * @return the byte read, or -1 of no data is available.
 	 */
 	protected int in() {
+		if (inputThread != null)
+			return takeInput();
+
 		try {
 			if (System.in.available() <= 0)
 				return -1;
@@ -63,6 +88,56 @@ public class StandardConsole implements SerialConsole {
 		}
 	}
 
+	private synchronized int takeInput() {
+		int value = bufferedInput;
+
+		if (value != -1) {
+			bufferedInput = -1;
+			notify();
+		}
+
+		return value;
+	}
+
+	private void inputLoop() {
+		while (true) {
+			int value;
+
+			try {
+				value = System.in.read();
+			}
+			catch (IOException e) {
+				value = -1;
+			}
+
+			synchronized (this) {
+				if (value == -1)
+					inputClosed = true;
+				else
+					bufferedInput = value;
+			}
+
+			privilege.interrupt.inputArrived();
+
+			if (value == -1)
+				return;
+
+			synchronized (this) {
+				while (bufferedInput != -1) {
+					try {
+						wait();
+					}
+					catch (InterruptedException e) {
+					}
+				}
+			}
+		}
+	}
+
+	private synchronized boolean inputClosed() {
+		return inputClosed;
+	}
+
 	private int translateCharacter(int c) {
 		// translate win32 0x0D 0x0A sequence to single newline
 		if (c == 0x0A && prevCarriageReturn) {
@@ -93,6 +168,10 @@ public class StandardConsole implements SerialConsole {
 
 		incomingKey = translateCharacter(in());
 		if (incomingKey == -1) {
+			// no more input will be signalled once System.in is closed
+			if (inputThread != null && inputClosed())
+				privilege.interrupt.setPollsInput(receiveHandle, false);
+
 			scheduleReceiveInterrupt();
 		}
 		else {
@@ -115,8 +194,7 @@ public class StandardConsole implements SerialConsole {
 	}
 
 	private void scheduleSendInterrupt() {
-		privilege.interrupt.schedule(Stats.ConsoleTime, "console write",
-				sendInterrupt);
+		privilege.interrupt.schedule(sendHandle, Stats.ConsoleTime);
 	}
 
 	/**
@@ -154,6 +232,15 @@ public class StandardConsole implements SerialConsole {
 
 	private Runnable sendInterrupt;
 
+	private int receiveHandle, sendHandle;
+
+	private Thread inputThread = null;
+
+	/** A byte read by the input thread but not yet taken, or -1 if none. */
+	private int bufferedInput = -1;
+
+	private boolean inputClosed = false;
+
 	private Runnable receiveInterruptHandler = null;
 
 	private Runnable sendInterruptHandler = null;
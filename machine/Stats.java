@@ -26,6 +26,10 @@ public final class Stats {
 				+ ", writes " + numConsoleWrites);
 		System.out.println("Paging: page faults " + numPageFaults
 				+ ", TLB misses " + numTLBMisses);
+		if (numTLBHits + numTLBMisses > 0)
+			System.out.println("TLB: hits " + numTLBHits + ", fetch misses "
+					+ numTLBFetchMisses + ", load misses " + numTLBLoadMisses
+					+ ", store misses " + numTLBStoreMisses);
 		System.out.println("Swap: COFF reads " + numCOFFReads
 				+ ", swap reads " + numSwapReads
 			        + ", swap writes " + numSwapWrites);
@@ -66,6 +70,18 @@ public final class Stats {
 	/** The total number of TLB misses that have occurred. */
 	public int numTLBMisses = 0;
 
+	/** The total number of memory references translated by the TLB. */
+	public long numTLBHits = 0;
+
+	/** The number of TLB misses caused by instruction fetches. */
+	public int numTLBFetchMisses = 0;
+
+	/** The number of TLB misses caused by loads. */
+	public int numTLBLoadMisses = 0;
+
+	/** The number of TLB misses caused by stores. */
+	public int numTLBStoreMisses = 0;
+
         /** The total number of pages read from COFF files. */
         public int numCOFFReads = 0;
 
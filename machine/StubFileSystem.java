@@ -68,6 +68,28 @@ public class StubFileSystem implements FileSystem {
 		private File f;
 	}
 
+	/**
+	 * Read from a file opened by a stub file system directly from the host
+	 * file, without the delay of a simulated read. The machine uses this for
+	 * data it reads for its own purposes, such as symbol tables, which should
+	 * not cost the kernel any simulated time.
+	 * 
+	 * @param file the file to read.
+	 * @param pos the offset in the file to read from.
+	 * @param buf the buffer to store the bytes in.
+	 * @param offset the offset in the buffer to start storing bytes.
+	 * @param length the number of bytes to read.
+	 * @return the number of bytes read, or -1 if the file was not opened by a
+	 * stub file system or the read failed.
+	 */
+	static int readHost(OpenFile file, int pos, byte[] buf, int offset,
+			int length) {
+		if (!(file instanceof StubOpenFile))
+			return -1;
+
+		return ((StubOpenFile) file).readHost(pos, buf, offset, length);
+	}
+
 	private void delay() {
 		long time = Machine.timer().getTime();
 		int amount = 1000;
@@ -128,6 +150,27 @@ public class StubFileSystem implements FileSystem {
 			}
 		}
 
+		int readHost(final int pos, final byte[] buf, final int offset,
+				final int length) {
+			if (!open)
+				return -1;
+
+			final int[] amount = new int[] { -1 };
+
+			privilege.doPrivileged(new Runnable() {
+				public void run() {
+					try {
+						file.seek(pos);
+						amount[0] = Math.max(0, file.read(buf, offset, length));
+					}
+					catch (IOException e) {
+					}
+				}
+			});
+
+			return amount[0];
+		}
+
 		public int write(int pos, byte[] buf, int offset, int length) {
 			if (!open)
 				return -1;
@@ -6,6 +6,11 @@ import nachos.security.*;
 import nachos.threads.KThread;
 
 import java.util.Vector;
+import java.util.concurrent.locks.LockSupport;
+import java.lang.reflect.Method;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.security.PrivilegedAction;
 
 /**
@@ -14,6 +19,28 @@ import java.security.PrivilegedAction;
  * object.
  * 
  * <p>
+ * By default each TCB gets a platform thread, with the stack size set by the
+ * <tt>TCB.stackSize</tt> key (0, the JVM default, if unset). If the
+ * <tt>TCB.virtualThreads</tt> key is set, TCBs instead get virtual threads,
+ * which requires Java 21 or later and lets a kernel run tens of thousands of
+ * threads. Either way only one TCB runs at a time, and a TCB waiting for its
+ * turn spins <tt>TCB.spinCount</tt> times before parking its thread. The
+ * number of TCBs that can exist at once is limited by the
+ * <tt>TCB.maxThreads</tt> key.
+ * 
+ * <p>
+ * If the <tt>TCB.continuations</tt> key is set instead, every TCB runs as a
+ * JDK continuation on the host thread that started the first TCB. A context
+ * switch then yields the current continuation, and that host thread runs the
+ * next one; no other host thread is involved, so there is no cross-thread
+ * synchronization at all. This uses the JDK's internal
+ * <tt>jdk.internal.vm.Continuation</tt> class, so it requires Java 21 or later
+ * and the JVM option
+ * <tt>--add-exports java.base/jdk.internal.vm=ALL-UNNAMED</tt>. Code that holds
+ * a monitor or has a native frame on the stack cannot be switched away from
+ * in this mode, and the attempt fails with an exception.
+ * 
+ * <p>
  * Do not use any methods in <tt>java.lang.Thread</tt>, as they are not
  * compatible with the TCB API. Most <tt>Thread</tt> methods will either crash
  * Nachos or have no useful effect.
@@ -68,10 +95,13 @@ public final class TCB {
 		 * Make sure there aren't too many running TCBs already. This limitation
 		 * exists in an effort to prevent wild thread usage.
 		 */
-		Lib.assertTrue(runningThreads.size() < maxThreads);
-
 		isFirstTCB = (currentTCB == null);
 
+		if (isFirstTCB)
+			loadConfig();
+
+		Lib.assertTrue(runningThreads.size() < maxThreads, "too many TCBs");
+
 		/*
 		 * Probably unnecessary sanity check: if this is not the first TCB, we
 		 * make sure that the current thread is bound to the current TCB. This
@@ -100,11 +130,18 @@ public final class TCB {
 				}
 			};
 
-			privilege.doPrivileged(new Runnable() {
-				public void run() {
-					javaThread = new Thread(tcbTarget);
-				}
-			});
+			if (continuations) {
+				// every continuation runs on the same Java thread
+				javaThread = currentTCB.javaThread;
+				continuation = newContinuation(tcbTarget);
+			}
+			else {
+				privilege.doPrivileged(new Runnable() {
+					public void run() {
+						javaThread = newJavaThread(tcbTarget);
+					}
+				});
+			}
 
 			/*
 			 * The Java thread hasn't yet started, but we need to get it
@@ -115,9 +152,29 @@ public final class TCB {
 			 */
 			currentTCB.running = false;
 
-			this.javaThread.start();
+			if (continuations)
+				nextTCB = this;
+			else
+				this.javaThread.start();
+
 			currentTCB.waitForInterrupt();
 		}
+		else if (continuations) {
+			/*
+			 * This is the first TCB. It runs as a continuation like every other
+			 * TCB, and from now on the current Java thread just runs whichever
+			 * continuation is next.
+			 */
+			javaThread = Thread.currentThread();
+			continuation = newContinuation(new Runnable() {
+				public void run() {
+					threadroot();
+				}
+			});
+
+			nextTCB = this;
+			runContinuations();
+		}
 		else {
 			/*
 			 * This is the first TCB, so we don't need to make a new Java thread
@@ -127,9 +184,155 @@ public final class TCB {
 
 			/* All we have to do now is invoke threadroot() directly. */
 			threadroot();
+
+			if (virtualThreads)
+				waitForExit();
 		}
 	}
 
+	/**
+	 * Run continuations on the current Java thread, one after another, for as
+	 * long as Nachos runs. Whenever a continuation yields or finishes, it has
+	 * set <tt>nextTCB</tt> to the TCB that should run next. Nachos exits from
+	 * within a continuation when the last TCB is destroyed.
+	 */
+	private static void runContinuations() {
+		while (true) {
+			TCB tcb = nextTCB;
+			Lib.assertTrue(tcb != null, "no TCB to run next");
+
+			nextTCB = null;
+			try {
+				continuationRun.invokeExact(tcb.continuation);
+			}
+			catch (Throwable e) {
+				rethrow(e);
+			}
+		}
+	}
+
+	private static Object newContinuation(Runnable target) {
+		try {
+			return (Object) continuationInit.invokeExact(continuationScope,
+					target);
+		}
+		catch (Throwable e) {
+			rethrow(e);
+			return null;
+		}
+	}
+
+	private static void rethrow(Throwable e) {
+		if (e instanceof RuntimeException)
+			throw (RuntimeException) e;
+		else if (e instanceof Error)
+			throw (Error) e;
+		else
+			Lib.assertNotReached();
+	}
+
+	/**
+	 * Called on the host thread that started the first TCB, once that TCB is
+	 * gone. Virtual threads are daemon threads, so if this thread returned the
+	 * JVM would exit, even though other TCBs may still be running. Nachos
+	 * exits on its own when the last TCB is destroyed, so just wait for that.
+	 * If the first TCB was not destroyed, it died some other way, and Nachos
+	 * would never exit.
+	 */
+	private void waitForExit() {
+		if (!done) {
+			System.out.print("\nFirst TCB terminated improperly!\n");
+			privilege.exit(1);
+		}
+
+		while (true)
+			LockSupport.park();
+	}
+
+	private static void loadConfig() {
+		maxThreads = Config.getInteger("TCB.maxThreads", 250);
+		Lib.assertTrue(maxThreads > 0, "bad TCB.maxThreads");
+
+		stackSize = Config.getInteger("TCB.stackSize", 0);
+		Lib.assertTrue(stackSize >= 0, "bad TCB.stackSize");
+
+		spinCount = Config.getInteger("TCB.spinCount", Runtime.getRuntime()
+				.availableProcessors() > 1 ? 1000 : 0);
+		Lib.assertTrue(spinCount >= 0, "bad TCB.spinCount");
+
+		virtualThreads = Config.getBoolean("TCB.virtualThreads", false);
+		if (virtualThreads) {
+			try {
+				ofVirtual = Thread.class.getMethod("ofVirtual");
+				unstarted = Class.forName("java.lang.Thread$Builder")
+						.getMethod("unstarted", Runnable.class);
+			}
+			catch (Exception e) {
+				Lib.assertNotReached("TCB.virtualThreads requires Java 21");
+			}
+		}
+
+		continuations = Config.getBoolean("TCB.continuations", false);
+		if (continuations) {
+			Lib.assertTrue(!virtualThreads,
+					"TCB.continuations and TCB.virtualThreads are exclusive");
+
+			try {
+				Class<?> scopeClass = Class
+						.forName("jdk.internal.vm.ContinuationScope");
+				Class<?> continuationClass = Class
+						.forName("jdk.internal.vm.Continuation");
+				MethodHandles.Lookup lookup = MethodHandles.lookup();
+
+				continuationScope = scopeClass.getConstructor(String.class)
+						.newInstance("TCB");
+				continuationInit = lookup.unreflectConstructor(
+						continuationClass.getConstructor(scopeClass,
+								Runnable.class)).asType(
+						MethodType.methodType(Object.class, Object.class,
+								Runnable.class));
+				continuationRun = lookup.unreflect(
+						continuationClass.getMethod("run")).asType(
+						MethodType.methodType(void.class, Object.class));
+				continuationYield = lookup.unreflect(
+						continuationClass.getMethod("yield", scopeClass))
+						.asType(MethodType.methodType(boolean.class,
+								Object.class));
+			}
+			catch (Exception e) {
+				Lib.assertNotReached("TCB.continuations requires Java 21 and "
+						+ "--add-exports java.base/jdk.internal.vm=ALL-UNNAMED");
+			}
+		}
+	}
+
+	private static Thread newJavaThread(Runnable target) {
+		if (virtualThreads) {
+			try {
+				return (Thread) unstarted.invoke(ofVirtual.invoke(null),
+						target);
+			}
+			catch (Exception e) {
+				Lib.assertNotReached("unable to create a virtual thread");
+			}
+		}
+
+		if (stackSize > 0)
+			return new Thread(null, target, "TCB", stackSize);
+		else
+			return new Thread(target);
+	}
+
+	/**
+	 * Return the maximum number of started, non-destroyed TCBs that can be in
+	 * existence, as set by the <tt>TCB.maxThreads</tt> key.
+	 * 
+	 * @return the maximum number of TCBs.
+	 */
+	public static int getMaxThreads() {
+		return maxThreads;
+	}
+
 	/**
 	 * Return the TCB of the currently running thread.
 	 */
@@ -197,6 +400,7 @@ public final class TCB {
 		currentTCB.waitForInterrupt();
 
 		this.javaThread = null;
+		this.continuation = null;
 	}
 
 	/**
@@ -291,32 +495,54 @@ public final class TCB {
 	}
 
 	/**
-	 * Waits on the monitor bound to this TCB until its <tt>running</tt> flag is
-	 * set to <tt>true</tt>. <tt>waitForInterrupt()</tt> is used whenever a TCB
-	 * needs to go to wait for its turn to run. This includes the ping-pong
-	 * process of starting and destroying TCBs, as well as in context switching
-	 * from this TCB to another. We don't rely on <tt>currentTCB</tt>, since it
-	 * is updated by <tt>contextSwitch()</tt> before we get called.
+	 * Waits until this TCB's <tt>running</tt> flag is set to <tt>true</tt>.
+	 * <tt>waitForInterrupt()</tt> is used whenever a TCB needs to go to wait
+	 * for its turn to run. This includes the ping-pong process of starting and
+	 * destroying TCBs, as well as in context switching from this TCB to
+	 * another. We don't rely on <tt>currentTCB</tt>, since it is updated by
+	 * <tt>contextSwitch()</tt> before we get called.
+	 * 
+	 * <p>
+	 * The thread first spins briefly, since on a multiprocessor host the next
+	 * switch back to it often comes quickly, and then parks. Parking rather
+	 * than waiting on a monitor also lets a virtual thread give up its
+	 * carrier thread.
 	 */
-	private synchronized void waitForInterrupt() {
-		while (!running) {
-			try {
-				wait();
-			}
-			catch (InterruptedException e) {
+	private void waitForInterrupt() {
+		if (continuations) {
+			while (!running) {
+				try {
+					boolean yielded = (boolean) continuationYield
+							.invokeExact(continuationScope);
+					Lib.assertTrue(yielded, "TCB could not yield");
+				}
+				catch (Throwable e) {
+					rethrow(e);
+				}
 			}
+
+			return;
 		}
+
+		for (int i = 0; i < spinCount && !running; i++)
+			;
+
+		while (!running)
+			LockSupport.park(this);
 	}
 
 	/**
 	 * Wake up this TCB by setting its <tt>running</tt> flag to <tt>true</tt>
-	 * and signalling the monitor bound to it. Used in the ping-pong process of
-	 * starting and destroying TCBs, as well as in context switching to this
-	 * TCB.
+	 * and unparking its thread. Used in the ping-pong process of starting and
+	 * destroying TCBs, as well as in context switching to this TCB.
 	 */
-	private synchronized void interrupt() {
+	private void interrupt() {
 		running = true;
-		notify();
+
+		if (continuations)
+			nextTCB = this;
+		else
+			LockSupport.unpark(javaThread);
 	}
 
 	private void associateThread(KThread thread) {
@@ -344,7 +570,34 @@ public final class TCB {
 	 * The maximum number of started, non-destroyed TCB's that can be in
 	 * existence.
 	 */
-	public static final int maxThreads = 250;
+	private static int maxThreads;
+
+	/** The stack size of platform threads, or 0 for the JVM default. */
+	private static long stackSize;
+
+	private static boolean virtualThreads;
+
+	/** Whether every TCB runs as a continuation on one Java thread. */
+	private static boolean continuations;
+
+	/** The TCB whose continuation runs next. */
+	private static TCB nextTCB = null;
+
+	/** The <tt>ContinuationScope</tt> all TCB continuations yield to. */
+	private static Object continuationScope;
+
+	/**
+	 * The <tt>Continuation</tt> constructor and its <tt>run()</tt> and static
+	 * <tt>yield()</tt> methods.
+	 */
+	private static MethodHandle continuationInit, continuationRun,
+			continuationYield;
+
+	/** How many times to check the running flag before parking. */
+	private static int spinCount;
+
+	/** <tt>Thread.ofVirtual()</tt> and <tt>Thread.Builder.unstarted()</tt>. */
+	private static Method ofVirtual, unstarted;
 
 	/**
 	 * A reference to the currently running TCB. It is initialized to
@@ -403,7 +656,7 @@ public final class TCB {
 	 * TCB, this is temporarily true for a thread other than that of the current
 	 * TCB.
 	 */
-	private boolean running = false;
+	private volatile boolean running = false;
 
 	/**
 	 * Set to <tt>true</tt> by <tt>destroy()</tt>, so that when
@@ -420,6 +673,9 @@ public final class TCB {
 
 	private Runnable tcbTarget;
 
+	/** The <tt>Continuation</tt> this TCB runs as, if any. */
+	private Object continuation = null;
+
 	private static class TCBPrivilege implements Privilege.TCBPrivilege {
 		public void associateThread(KThread thread) {
 			Lib.assertTrue(currentTCB != null);
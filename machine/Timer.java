@@ -13,6 +13,12 @@ import nachos.security.*;
  * interrupt to occur every time approximately 500 clock ticks pass. There is a
  * small degree of randomness here, so interrupts do not occur exactly every 500
  * ticks.
+ * 
+ * <p>
+ * The periodic interrupt can be turned off with <tt>setPeriodic()</tt>. The
+ * timer can also be programmed with <tt>setDeadline()</tt> to interrupt once,
+ * at an exact time, so that a tickless kernel is only interrupted when it
+ * has a thread to wake.
  */
 public final class Timer {
 	/**
@@ -27,7 +33,14 @@ public final class Timer {
 
 		timerInterrupt = new Runnable() {
 			public void run() {
-				timerInterrupt();
+				scheduleInterrupt();
+				timerInterrupt(true);
+			}
+		};
+
+		deadlineInterrupt = new Runnable() {
+			public void run() {
+				timerInterrupt(false);
 			}
 		};
 
@@ -38,12 +51,19 @@ public final class Timer {
 			}
 		};
 
+		timerHandle = privilege.interrupt.register("timer", timerInterrupt);
+		deadlineHandle = privilege.interrupt.register("timer deadline",
+				deadlineInterrupt);
+		autoGraderHandle = privilege.interrupt.register("timerAG",
+				autoGraderInterrupt);
+
 		scheduleInterrupt();
 	}
 
 	/**
 	 * Set the callback to use as a timer interrupt handler. The timer interrupt
-	 * handler will be called approximately every 500 clock ticks.
+	 * handler will be called approximately every 500 clock ticks while the
+	 * periodic interrupt is on, and at every deadline.
 	 * 
 	 * @param handler the timer interrupt handler.
 	 */
@@ -51,6 +71,66 @@ public final class Timer {
 		this.handler = handler;
 	}
 
+	/**
+	 * Get the callback currently used as the timer interrupt handler, so that
+	 * a new handler can chain to it.
+	 * 
+	 * @return the timer interrupt handler, or <tt>null</tt> if none is set.
+	 */
+	public Runnable getInterruptHandler() {
+		return handler;
+	}
+
+	/**
+	 * Turn the periodic timer interrupt on or off. It is on when the timer is
+	 * allocated.
+	 * 
+	 * @param periodic <tt>true</tt> to interrupt approximately every 500
+	 * clock ticks.
+	 */
+	public void setPeriodic(boolean periodic) {
+		if (periodic == this.periodic)
+			return;
+
+		this.periodic = periodic;
+
+		if (periodic)
+			scheduleInterrupt();
+		else
+			privilege.interrupt.cancel(timerHandle);
+	}
+
+	/**
+	 * Program the timer to interrupt once at the specified time, replacing any
+	 * deadline set before. The interrupt is in addition to the periodic ones.
+	 * 
+	 * @param time the time at which to interrupt. If it is not in the future,
+	 * the interrupt occurs at the next tick.
+	 */
+	public void setDeadline(long time) {
+		privilege.interrupt.schedule(deadlineHandle,
+				Math.max(time - getTime(), 1));
+	}
+
+	/**
+	 * Cancel the deadline set by <tt>setDeadline()</tt>, if it has not yet
+	 * passed.
+	 */
+	public void cancelDeadline() {
+		privilege.interrupt.cancel(deadlineHandle);
+	}
+
+	/**
+	 * Return whether the timer interrupt being handled is the periodic one,
+	 * rather than a deadline set by <tt>setDeadline()</tt>. Only meaningful
+	 * inside the timer interrupt handler.
+	 * 
+	 * @return <tt>true</tt> if the periodic interrupt is being handled.
+	 */
+	public boolean isPeriodicInterrupt() {
+		return periodicInterrupt;
+	}
+
 	/**
 	 * Get the current time.
 	 * 
@@ -60,11 +140,11 @@ public final class Timer {
 		return privilege.stats.totalTicks;
 	}
 
-	private void timerInterrupt() {
-		scheduleInterrupt();
+	private void timerInterrupt(boolean periodic) {
 		scheduleAutoGraderInterrupt();
 
 		lastTimerInterrupt = getTime();
+		periodicInterrupt = periodic;
 
 		if (handler != null)
 			handler.run();
@@ -74,11 +154,11 @@ public final class Timer {
 		int delay = Stats.TimerTicks;
 		delay += Lib.random(delay / 10) - (delay / 20);
 
-		privilege.interrupt.schedule(delay, "timer", timerInterrupt);
+		privilege.interrupt.schedule(timerHandle, delay);
 	}
 
 	private void scheduleAutoGraderInterrupt() {
-		privilege.interrupt.schedule(1, "timerAG", autoGraderInterrupt);
+		privilege.interrupt.schedule(autoGraderHandle, 1);
 	}
 
 	private long lastTimerInterrupt;
@@ -87,6 +167,14 @@ public final class Timer {
 
 	private Runnable autoGraderInterrupt;
 
+	private Runnable deadlineInterrupt;
+
+	private int timerHandle, deadlineHandle, autoGraderHandle;
+
+	private boolean periodic = true;
+
+	private boolean periodicInterrupt = false;
+
 	private Privilege privilege;
 
 	private Runnable handler = null;
@@ -48,6 +48,7 @@ public final class TranslationEntry {
 		readOnly = entry.readOnly;
 		used = entry.used;
 		dirty = entry.dirty;
+		asid = entry.asid;
 	}
 
 	/** The virtual page number. */
@@ -78,4 +79,14 @@ public final class TranslationEntry {
 	 * user program.
 	 */
 	public boolean dirty;
+
+	/**
+	 * The address space this entry belongs to. Only used by the TLB, which
+	 * ignores the entry unless it matches <tt>Processor.getASID()</tt> or is
+	 * <tt>globalASID</tt>.
+	 */
+	public int asid = globalASID;
+
+	/** An address space identifier that matches every address space. */
+	public static final int globalASID = -1;
 }
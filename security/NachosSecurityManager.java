@@ -59,7 +59,7 @@ public class NachosSecurityManager extends SecurityManager {
 			NachosSecurityManager.this.doPrivileged(action);
 		}
 
-		public Object doPrivileged(PrivilegedAction action) {
+		public <T> T doPrivileged(PrivilegedAction<T> action) {
 			return NachosSecurityManager.this.doPrivileged(action);
 		}
 
@@ -123,7 +123,7 @@ public class NachosSecurityManager extends SecurityManager {
 	}
 
 	private void doPrivileged(final Runnable action) {
-		doPrivileged(new PrivilegedAction() {
+		doPrivileged(new PrivilegedAction<Object>() {
 			public Object run() {
 				action.run();
 				return null;
@@ -131,8 +131,8 @@ public class NachosSecurityManager extends SecurityManager {
 		});
 	}
 
-	private Object doPrivileged(PrivilegedAction action) {
-		Object result = null;
+	private <T> T doPrivileged(PrivilegedAction<T> action) {
+		T result = null;
 		enablePrivilege();
 		try {
 			result = action.run();
@@ -275,10 +275,40 @@ public class NachosSecurityManager extends SecurityManager {
 			}
 		}
 
+		// the JDK starts carrier threads for virtual threads on demand, from
+		// whichever virtual thread happens to need one
+		if (isJDKCreating("jdk.internal.misc.CarrierThread"))
+			return;
+
 		// default to requiring privilege
 		verifyPrivilege(perm);
 	}
 
+	/**
+	 * Return true if the JDK is constructing an instance of the named class on
+	 * its own behalf: a frame of that class is on the stack, and only JDK code
+	 * has run between it and this check. Nachos code cannot construct the
+	 * internal classes this is used for.
+	 * 
+	 * @param className the fully qualified name of an internal JDK class.
+	 * @return true if the JDK is constructing an instance of that class.
+	 */
+	private boolean isJDKCreating(String className) {
+		Class<?>[] context = getClassContext();
+
+		// skip this class, and stop at the first caller outside the JDK
+		int i = 0;
+		while (i < context.length && context[i] == NachosSecurityManager.class)
+			i++;
+
+		for (; i < context.length && context[i].getClassLoader() == null; i++) {
+			if (context[i].getName().equals(className))
+				return true;
+		}
+
+		return false;
+	}
+
 	/**
 	 * Called by the <tt>java.lang.Thread</tt> constructor to determine a thread
 	 * group for a child thread of the current thread. The caller must be
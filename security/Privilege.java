@@ -62,7 +62,7 @@ public abstract class Privilege {
 	 * @param action the action to perform.
 	 * @return the return value of the action.
 	 */
-	public abstract Object doPrivileged(PrivilegedAction action);
+	public abstract <T> T doPrivileged(PrivilegedAction<T> action);
 
 	/**
 	 * Perform the specified <tt>PrivilegedExceptionAction</tt> with privilege.
@@ -149,6 +149,71 @@ public abstract class Privilege {
 		 */
 		public void schedule(long when, String type, Runnable handler);
 
+		/**
+		 * Register an interrupt handler that will be scheduled repeatedly.
+		 * Scheduling, rescheduling and cancelling a registered interrupt
+		 * through its handle allocates nothing.
+		 * 
+		 * @param type a name for the type of interrupt.
+		 * @param handler the interrupt handler to call.
+		 * @return a handle for the interrupt.
+		 */
+		public int register(String type, Runnable handler);
+
+		/**
+		 * Schedule a registered interrupt to occur at some time in the
+		 * future. If it is already pending, it is moved to the new time.
+		 * Takes O(log <i>n</i>) time for <i>n</i> pending interrupts.
+		 * 
+		 * @param handle the handle returned by <tt>register()</tt>.
+		 * @param when the number of ticks until the interrupt should occur.
+		 */
+		public void schedule(int handle, long when);
+
+		/**
+		 * Cancel a registered interrupt, if it is pending. Takes O(log
+		 * <i>n</i>) time for <i>n</i> pending interrupts.
+		 * 
+		 * @param handle the handle returned by <tt>register()</tt>.
+		 */
+		public void cancel(int handle);
+
+		/**
+		 * Test whether a registered interrupt is pending.
+		 * 
+		 * @param handle the handle returned by <tt>register()</tt>.
+		 * @return <tt>true</tt> if the interrupt is scheduled and has not yet
+		 * occurred.
+		 */
+		public boolean isPending(int handle);
+
+		/**
+		 * Test whether the host thread may block while waiting for input, as
+		 * set by the <tt>Machine.blockOnInput</tt> key. If so, devices should
+		 * mark the interrupts with which they poll for input, and signal when
+		 * input arrives.
+		 * 
+		 * @return <tt>true</tt> if the host thread may block on input.
+		 */
+		public boolean blocksOnInput();
+
+		/**
+		 * Mark whether a registered interrupt only polls for host input, so
+		 * that when nothing else is pending the host thread can block until
+		 * <tt>inputArrived()</tt> is called.
+		 * 
+		 * @param handle the handle returned by <tt>register()</tt>.
+		 * @param pollsInput <tt>true</tt> if the interrupt polls for input.
+		 */
+		public void setPollsInput(int handle, boolean pollsInput);
+
+		/**
+		 * Signal that host input has arrived for some device. Unlike the
+		 * other methods of this interface, this may be called from any host
+		 * thread.
+		 */
+		public void inputArrived();
+
 		/**
 		 * Advance the simulated time.
 		 * 
@@ -157,6 +222,25 @@ public abstract class Privilege {
 		 * user code.
 		 */
 		public void tick(boolean inKernelMode);
+
+		/**
+		 * Return the number of user mode ticks that can pass before a pending
+		 * interrupt becomes due. Advancing the simulated time by this many
+		 * ticks with <tt>advanceUserTicks()</tt> is the same as calling
+		 * <tt>tick(false)</tt> once per tick.
+		 * 
+		 * @return the number of ticks that will not cause an interrupt.
+		 */
+		public long userTicksUntilDue();
+
+		/**
+		 * Advance the simulated time by the specified number of user mode
+		 * ticks, without checking for due interrupts.
+		 * 
+		 * @param ticks the number of ticks, at most
+		 * <tt>userTicksUntilDue()</tt>.
+		 */
+		public void advanceUserTicks(long ticks);
 	}
 
 	/**
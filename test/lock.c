@@ -0,0 +1,71 @@
+#include "lock.h"
+
+/* The rest of the library is built for MIPS I, which has no ll or sc, so
+ * they are switched on just for these instructions. Unlike other loads,
+ * ll has no load delay slot.
+ */
+static int load_linked(volatile int *p) {
+  int value;
+
+  __asm__ __volatile__(".set mips2\n\tll %0,%1\n\t.set mips1"
+		       : "=r" (value) : "m" (*p));
+
+  return value;
+}
+
+/* returns 1 if the store happened, 0 if the link was broken */
+static int store_conditional(volatile int *p, int value) {
+  int result;
+
+  __asm__ __volatile__(".set mips2\n\tsc %0,%1\n\t.set mips1"
+		       : "=r" (result), "=m" (*p) : "0" (value) : "memory");
+
+  return result;
+}
+
+void spin_init(spinlock *lock) {
+  lock->held = 0;
+}
+
+void spin_lock(spinlock *lock) {
+  while (!spin_trylock(lock))
+    ;
+}
+
+int spin_trylock(spinlock *lock) {
+  do {
+    if (load_linked(&lock->held) != 0)
+      return 0;
+  }
+  while (!store_conditional(&lock->held, 1));
+
+  return 1;
+}
+
+void spin_unlock(spinlock *lock) {
+  /* keep the critical section's stores before the release */
+  __asm__ __volatile__("" : : : "memory");
+
+  lock->held = 0;
+}
+
+int atomic_add(volatile int *p, int delta) {
+  int value;
+
+  do {
+    value = load_linked(p) + delta;
+  }
+  while (!store_conditional(p, value));
+
+  return value;
+}
+
+int atomic_cas(volatile int *p, int expected, int desired) {
+  do {
+    if (load_linked(p) != expected)
+      return 0;
+  }
+  while (!store_conditional(p, desired));
+
+  return 1;
+}
@@ -0,0 +1,43 @@
+/*-------------------------------------------------------------
+ * lock.h
+ *
+ * User-level spinlocks and atomic operations, built on the
+ * load-linked and store-conditional instructions. None of these
+ * make a system call.
+ *-------------------------------------------------------------*/
+
+#ifndef LOCK_H
+#define LOCK_H
+
+typedef struct {
+  volatile int held;
+} spinlock;
+
+#define SPINLOCK_INITIALIZER	{ 0 }
+
+/* Initialize a lock to the released state. */
+void spin_init(spinlock *lock);
+
+/* Acquire a lock, spinning until it is free. A waiter keeps spinning
+ * until the holder runs again and releases the lock, so hold spinlocks
+ * only briefly.
+ */
+void spin_lock(spinlock *lock);
+
+/* Try to acquire a lock without spinning. Returns 1 if it was acquired,
+ * 0 if it is held.
+ */
+int spin_trylock(spinlock *lock);
+
+/* Release a lock held by the caller. */
+void spin_unlock(spinlock *lock);
+
+/* Atomically add delta to *p, and return the new value. */
+int atomic_add(volatile int *p, int delta);
+
+/* Atomically set *p to desired if it equals expected. Returns 1 if *p was
+ * changed, 0 if not.
+ */
+int atomic_cas(volatile int *p, int expected, int desired);
+
+#endif // LOCK_H
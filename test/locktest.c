@@ -0,0 +1,54 @@
+/* locktest.c
+ *	Exercise the ll/sc spinlocks and atomic operations in lock.c.
+ *
+ *	Usage: locktest <count>
+ *
+ *	The atomic_add loop runs long enough for timer interrupts to land
+ *	between an ll and its sc, so the retry path is taken as well as the
+ *	fast path. Prints the final counter and exits with 0 on success.
+ */
+
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+#include "lock.h"
+
+spinlock lock = SPINLOCK_INITIALIZER;
+volatile int counter;
+
+int
+main(int argc, char *argv[])
+{
+    int count = 10000;
+    int i;
+
+    if (argc > 1)
+	count = atoi(argv[1]);
+
+    /* a held lock cannot be taken again until it is released */
+    assert(spin_trylock(&lock));
+    assert(!spin_trylock(&lock));
+    spin_unlock(&lock);
+    assert(spin_trylock(&lock));
+    spin_unlock(&lock);
+
+    for (i = 0; i < count; i++) {
+	spin_lock(&lock);
+	counter++;
+	spin_unlock(&lock);
+	atomic_add(&counter, 1);
+    }
+    assert(counter == 2 * count);
+
+    /* cas only succeeds against the current value */
+    assert(!atomic_cas(&counter, 2 * count + 1, 0));
+    assert(counter == 2 * count);
+    assert(atomic_cas(&counter, 2 * count, -1));
+    assert(atomic_add(&counter, 1) == 0);
+
+    spin_init(&lock);
+    assert(spin_trylock(&lock));
+
+    printf("locktest: %d iterations ok\n", count);
+    return 0;
+}
@@ -25,6 +25,7 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallPerfCounters	13
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -246,6 +247,31 @@ int connect(int host, int port);
  */
 int accept(int port);
 
+/* Performance counters, in the order perfcounters() returns them. */
+#define PERF_INSTRUCTIONS	0
+#define PERF_USER_TICKS		1
+#define PERF_KERNEL_TICKS	2
+#define PERF_LOADS		3
+#define PERF_STORES		4
+#define PERF_BRANCHES		5
+#define PERF_TLB_MISSES		6
+#define PERF_PAGE_FAULTS	7
+#define PERF_SYSCALLS		8
+#define PERF_NUM_COUNTERS	9
+
+/**
+ * Read the performance counters of the current process into counters, which
+ * has room for count entries. The counters only include work done while this
+ * process was running: instructions it retired, simulated time spent in user
+ * and kernel mode, the loads, stores and branches it retired (taken or not),
+ * and the TLB misses, page faults and syscalls it caused. Call it before and
+ * after the code being measured and subtract.
+ *
+ * Returns the number of counters read, which is the smaller of count and
+ * PERF_NUM_COUNTERS, or -1 if an error occurred.
+ */
+int perfcounters(long long *counters, int count);
+
 #endif /* START_S */
 
 #endif /* SYSCALL_H */
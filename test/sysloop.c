@@ -0,0 +1,27 @@
+/* sysloop.c
+ *	Make the cheapest system call possible, over and over, to measure
+ *	how long a round trip through the kernel takes.
+ *
+ *	Usage: sysloop <count>
+ *
+ *	Each iteration closes a file descriptor that is not open, so the
+ *	kernel does nothing but decode the call and return -1.
+ */
+
+#include "syscall.h"
+#include "stdlib.h"
+
+int
+main(int argc, char *argv[])
+{
+    int count = 1000;
+    int i;
+
+    if (argc > 1)
+	count = atoi(argv[1]);
+
+    for (i = 0; i < count; i++)
+	close(-1);
+
+    return 0;
+}
@@ -2,18 +2,28 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.Comparator;
-import java.util.PriorityQueue;
-import java.util.Queue;
-
 /**
  * Uses the hardware timer to provide preemption, and to allow threads to sleep
  * until a certain time.
+ * 
+ * <p>
+ * Pending timeouts are kept in a hashed hierarchical timer wheel: six levels
+ * of 64 slots, where a slot at level <i>n</i> spans 64<sup><i>n</i></sup>
+ * ticks. A timeout is hashed into the lowest level whose slot holds all of
+ * its remaining time, and moves down a level whenever the wheel reaches its
+ * slot, so setting, cancelling and expiring a timeout all take constant time
+ * however many threads are sleeping. A bitmap of the occupied slots at each
+ * level lets the wheel skip over empty stretches of time.
+ * 
+ * <p>
+ * If the <tt>ThreadedKernel.tickless</tt> key is set, the alarm turns off the
+ * periodic timer interrupt and instead programs the timer to interrupt when
+ * the wheel next has work to do, so that sleeping threads wake exactly on
+ * time and an idle kernel is not interrupted at all.
  */
 public class Alarm {
 
-	private long numberOfTicks = 0;
-	PriorityQueue<priorityThread> waitQueue = null;
+	private boolean tickless;
 
 	/**
 	 * Allocate a new Alarm. Set the machine's timer interrupt handler to this
@@ -28,6 +38,12 @@ public class Alarm {
 				timerInterrupt();
 			}
 		});
+
+		current = Machine.timer().getTime();
+
+		tickless = Config.getBoolean("ThreadedKernel.tickless", false);
+		if (tickless)
+			Machine.timer().setPeriodic(false);
 	}
 
 	/**
@@ -38,19 +54,13 @@ public class Alarm {
 	 */
 	public void timerInterrupt() {
 		boolean intStatus = Machine.interrupt().disable();
-		// System.out.println((numberOfTicks++) + " " + KThread.currentThread().getName());
-
-		if(waitQueue != null && waitQueue.size() != 0){
-			long curTime = Machine.timer().getTime();
-			while(waitQueue.size() > 0 && curTime >= waitQueue.peek().wakeTime){
-				// System.out.println(waitQueue.peek().wakeTime);
-				waitQueue.poll().thread.ready();
-				// System.out.println("Pop");
-			}
-		}
+
+		advance(Machine.timer().getTime());
+
+		if (tickless)
+			programTimer();
+
 		Machine.interrupt().restore(intStatus);
-		
-		// System.out.println("Test for intrrupt: " + KThread.currentThread().getName());
 	}
 
 	/**
@@ -61,6 +71,10 @@ public class Alarm {
 	 * <p>
 	 * <blockquote> (current time) >= (WaitUntil called time)+(x) </blockquote>
 	 * 
+	 * <p>
+	 * The thread is woken up early if another thread calls
+	 * <tt>cancel()</tt> on it.
+	 * 
 	 * @param x the minimum number of clock ticks to wait.
 	 * 
 	 * @see nachos.machine.Timer#getTime()
@@ -71,42 +85,324 @@ public class Alarm {
 			Machine.interrupt().restore(intStatus);
 			return;
 		}
-		long wakeTime = Machine.timer().getTime() + x;
-		if (waitQueue == null){
-			// System.out.println("creating a new queue");
-			createNewQueue();
-		}
-		// System.out.println(KThread.currentThread().getName());
 
-		waitQueue.add(new priorityThread(KThread.currentThread(), wakeTime));
-		// System.out.println("Queue size: " + waitQueue.size());
+		// each thread reuses the same timeout for all of its sleeps
+		KThread thread = KThread.currentThread();
+		if (thread.sleepTimeout == null)
+			thread.sleepTimeout = new Timeout(thread, null);
+
+		set(thread.sleepTimeout, Machine.timer().getTime() + x);
 
 		// Note: sleep rather than yield because yield 
 		// will put this thread into ready queue
-		KThread.currentThread().sleep();
+		KThread.sleep();
 		Machine.interrupt().restore(intStatus);
 	}
 
-	private void createNewQueue(){
-		waitQueue = new PriorityQueue<priorityThread>(new Comparator<priorityThread>(){
-			public int compare(priorityThread thread1, priorityThread thread2) {
-				if(thread1.wakeTime > thread2.wakeTime) return 1;
-				else if(thread1.wakeTime < thread2.wakeTime) return -1;
-				else return 0;
-			}
-		});
+	/**
+	 * Cancel the timer of a thread sleeping in <tt>waitUntil()</tt>, waking it
+	 * up immediately (placing it in the scheduler ready set).
+	 * 
+	 * @param thread the thread to wake up.
+	 * @return <tt>true</tt> if the thread was sleeping in <tt>waitUntil()</tt>,
+	 * <tt>false</tt> if it had no timer set.
+	 */
+	public boolean cancel(KThread thread) {
+		boolean intStatus = Machine.interrupt().disable();
+
+		Timeout timeout = thread.sleepTimeout;
+		boolean pending = (timeout != null && timeout.isPending());
+
+		if (pending) {
+			remove(timeout);
+			thread.ready();
+		}
+
+		Machine.interrupt().restore(intStatus);
+		return pending;
+	}
+
+	/**
+	 * Arrange for a handler to be called after at least <i>x</i> ticks, from
+	 * the first timer interrupt at or after that time. The handler is called
+	 * with interrupts disabled, and must not sleep.
+	 * 
+	 * @param x the minimum number of clock ticks to wait.
+	 * @param handler the handler to call.
+	 * @return a handle with which the timeout can be cancelled.
+	 */
+	public Timeout setTimeout(long x, Runnable handler) {
+		Lib.assertTrue(handler != null);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		Timeout timeout = new Timeout(null, handler);
+		set(timeout, Machine.timer().getTime() + Math.max(x, 1));
+
+		Machine.interrupt().restore(intStatus);
+		return timeout;
 	}
 
-	private class priorityThread{
-		public KThread thread = null;
-		public long wakeTime = 0;
-		
-		public priorityThread(KThread thread, long wakeTime){
+	/**
+	 * Set a timeout that has expired or been cancelled again, so that its
+	 * handler is called after at least <i>x</i> ticks. This lets a caller
+	 * that sets timeouts often reuse one instead of allocating a new one each
+	 * time.
+	 * 
+	 * @param timeout a timeout returned by <tt>setTimeout()</tt>, which must
+	 * not be pending.
+	 * @param x the minimum number of clock ticks to wait.
+	 */
+	void setTimeout(Timeout timeout, long x) {
+		Lib.assertTrue(timeout.handler != null);
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		set(timeout, Machine.timer().getTime() + Math.max(x, 1));
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * A timeout set with <tt>setTimeout()</tt>.
+	 */
+	public class Timeout {
+		Timeout(KThread thread, Runnable handler) {
 			this.thread = thread;
-			this.wakeTime = wakeTime;
+			this.handler = handler;
+		}
+
+		/**
+		 * Cancel this timeout, if it has not yet expired.
+		 * 
+		 * @return <tt>true</tt> if the timeout was pending.
+		 */
+		public boolean cancel() {
+			boolean intStatus = Machine.interrupt().disable();
+
+			boolean pending = isPending();
+			if (pending)
+				remove(this);
+
+			Machine.interrupt().restore(intStatus);
+			return pending;
+		}
+
+		/**
+		 * Test whether this timeout has neither expired nor been cancelled.
+		 * 
+		 * @return <tt>true</tt> if the timeout is pending.
+		 */
+		public boolean isPending() {
+			return level != notPending;
+		}
+
+		/**
+		 * Return the time at which this timeout expires, or expired.
+		 * 
+		 * @return the expiry time, in ticks.
+		 */
+		public long getTime() {
+			return time;
+		}
+
+		/** The thread to wake, or <tt>null</tt> to call the handler. */
+		private KThread thread;
+
+		private Runnable handler;
+
+		private long time;
+
+		/** The wheel level and slot the timeout is in, if it is pending. */
+		private int level = notPending, slot;
+
+		private Timeout prev, next;
+	}
+
+	/**
+	 * Add a timeout to the wheel. If it is not after the last time the wheel
+	 * was advanced to, it expires the next time the wheel advances.
+	 */
+	private void set(Timeout timeout, long time) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+		Lib.assertTrue(!timeout.isPending());
+
+		timeout.time = time;
+		insert(timeout);
+		numPending++;
+
+		if (tickless)
+			programTimer();
+	}
+
+	private void insert(Timeout timeout) {
+		long time = Math.max(timeout.time, current);
+		long diff = time ^ current;
+
+		// the highest group of bits in which the expiry differs from now
+		int level = (diff == 0) ? 0
+				: (63 - Long.numberOfLeadingZeros(diff)) / slotBits;
+
+		if (level >= numLevels) {
+			level = overflowLevel;
+			timeout.slot = 0;
+		}
+		else {
+			timeout.slot = (int) (time >>> (level * slotBits)) & slotMask;
+			occupied[level] |= 1L << timeout.slot;
+		}
+
+		timeout.level = level;
+
+		// append, so that timeouts due at the same time expire in order
+		Timeout tail = tails[level][timeout.slot];
+		timeout.prev = tail;
+		timeout.next = null;
+
+		if (tail == null)
+			heads[level][timeout.slot] = timeout;
+		else
+			tail.next = timeout;
+		tails[level][timeout.slot] = timeout;
+	}
+
+	private void remove(Timeout timeout) {
+		int level = timeout.level, slot = timeout.slot;
+
+		if (timeout.prev == null)
+			heads[level][slot] = timeout.next;
+		else
+			timeout.prev.next = timeout.next;
+
+		if (timeout.next == null)
+			tails[level][slot] = timeout.prev;
+		else
+			timeout.next.prev = timeout.prev;
+
+		if (heads[level][slot] == null && level != overflowLevel)
+			occupied[level] &= ~(1L << slot);
+
+		timeout.prev = timeout.next = null;
+		timeout.level = notPending;
+		numPending--;
+	}
+
+	/**
+	 * Return the next time at which the wheel has work to do: either a level
+	 * zero slot whose timeouts expire then, or a higher slot whose timeouts
+	 * must move down a level. This is never later than the earliest expiry.
+	 */
+	private long nextEventTime() {
+		long next = Long.MAX_VALUE;
+
+		for (int level = 0; level < numLevels; level++) {
+			int shift = level * slotBits;
+			int slot = (int) (current >>> shift) & slotMask;
+
+			long candidates = occupied[level] & (-1L << slot);
+			if (candidates == 0)
+				continue;
+
+			long rotation = current & ~((1L << (shift + slotBits)) - 1);
+			long start = rotation
+					+ ((long) Long.numberOfTrailingZeros(candidates) << shift);
+
+			next = Math.min(next, Math.max(start, current));
 		}
+
+		if (heads[overflowLevel][0] != null) {
+			long span = 1L << (numLevels * slotBits);
+			next = Math.min(next, (current & ~(span - 1)) + span);
+		}
+
+		return next;
 	}
 
+	/**
+	 * Expire every timeout due at or before the specified time.
+	 */
+	private void advance(long time) {
+		while (numPending > 0) {
+			long next = nextEventTime();
+			if (next > time)
+				break;
+
+			current = next;
+
+			// move timeouts whose slot has been reached down the wheel
+			if ((current & ((1L << (numLevels * slotBits)) - 1)) == 0)
+				cascade(overflowLevel, 0);
+
+			for (int level = numLevels - 1; level > 0; level--) {
+				int shift = level * slotBits;
+				if ((current & ((1L << shift) - 1)) == 0)
+					cascade(level, (int) (current >>> shift) & slotMask);
+			}
+
+			int slot = (int) current & slotMask;
+			while (heads[0][slot] != null) {
+				Timeout timeout = heads[0][slot];
+				remove(timeout);
+
+				if (timeout.thread != null)
+					timeout.thread.ready();
+				else
+					timeout.handler.run();
+			}
+
+			current++;
+		}
+
+		current = Math.max(current, time + 1);
+	}
+
+	private void cascade(int level, int slot) {
+		Timeout timeout = heads[level][slot];
+		if (timeout == null)
+			return;
+
+		heads[level][slot] = tails[level][slot] = null;
+		if (level != overflowLevel)
+			occupied[level] &= ~(1L << slot);
+
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			insert(timeout);
+			timeout = next;
+		}
+	}
+
+	/**
+	 * Program the timer to interrupt when the wheel next has work to do, or
+	 * cancel its deadline if no timeout is pending.
+	 */
+	private void programTimer() {
+		if (numPending == 0)
+			Machine.timer().cancelDeadline();
+		else
+			Machine.timer().setDeadline(nextEventTime());
+	}
+
+	private static final int slotBits = 6, numSlots = 1 << slotBits,
+			slotMask = numSlots - 1, numLevels = 6;
+
+	/** The level holding timeouts too far away for the wheel. */
+	private static final int overflowLevel = numLevels;
+
+	private static final int notPending = -1;
+
+	/** The first time the wheel has not yet advanced past. */
+	private long current;
+
+	private int numPending = 0;
+
+	private Timeout[][] heads = new Timeout[numLevels + 1][numSlots];
+
+	private Timeout[][] tails = new Timeout[numLevels + 1][numSlots];
+
+	/** A bitmap of the non-empty slots at each level. */
+	private long[] occupied = new long[numLevels];
+
 	// Add Alarm testing code to the Alarm class
     public static void alarmTest1() {
 		int durations[] = {1000, 10*1000, 100*1000};
@@ -147,11 +443,58 @@ public class Alarm {
 		}
     }
 
+	// A cancelled timeout must never fire, even after its time passes
+	public static void alarmTestCancel() {
+		final boolean[] fired = new boolean[1];
+		Alarm.Timeout timeout = ThreadedKernel.alarm.setTimeout(5000,
+				new Runnable() {
+					public void run() {
+						fired[0] = true;
+					}
+				});
+
+		Lib.assertTrue(timeout.cancel(), "timeout was not pending");
+		ThreadedKernel.alarm.waitUntil(10 * 1000);
+
+		Lib.assertTrue(!fired[0], "cancelled timeout fired");
+		Lib.assertTrue(!timeout.isPending() && !timeout.cancel(),
+				"cancelled timeout still pending");
+		System.out.println("alarmTestCancel: cancelled timeout did not fire");
+	}
+
+	// Delays over 64 ticks start above the lowest level of the wheel, and
+	// must cascade down to it without expiring early
+	public static void alarmTestCascade() {
+		long durations[] = {65, 200, 4097, 300 * 1000};
+		long t0, t1;
+		for (long d : durations) {
+			t0 = Machine.timer().getTime();
+			ThreadedKernel.alarm.waitUntil(d);
+			t1 = Machine.timer().getTime();
+			Lib.assertTrue(t1 - t0 >= d, "woke up early");
+			System.out.println ("alarmTestCascade: waited " + (t1 - t0) + " ticks for " + d);
+		}
+
+		final long[] firedAt = {-1};
+		long due = Machine.timer().getTime() + 130;
+		ThreadedKernel.alarm.setTimeout(130, new Runnable() {
+			public void run() {
+				firedAt[0] = Machine.timer().getTime();
+			}
+		});
+		ThreadedKernel.alarm.waitUntil(1000);
+
+		Lib.assertTrue(firedAt[0] >= due, "timeout did not fire on time");
+		System.out.println ("alarmTestCascade: timeout fired " + (firedAt[0] - due) + " ticks late");
+	}
+
     // Implement more test methods here ...
     // Invoke Alarm.selfTest() from ThreadedKernel.selfTest()
     public static void selfTest() {
 		// alarmTest1();
 		// Invoke your other test methods here ...
 		// alarmTestMultiThreads();
+		alarmTestCancel();
+		alarmTestCascade();
     }
 }
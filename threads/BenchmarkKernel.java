@@ -0,0 +1,118 @@
+package nachos.threads;
+
+import nachos.machine.*;
+
+/**
+ * A kernel that measures how much forking, context switching and finishing
+ * kernel threads costs on the host, for comparing TCB implementations.
+ * 
+ * <p>
+ * It forks <tt>BenchmarkKernel.threads</tt> threads (200 by default), which
+ * all stay alive while each of them yields <tt>BenchmarkKernel.yields</tt>
+ * times (100 by default), and then lets them finish. Set
+ * <tt>TCB.maxThreads</tt> high enough for all of them.
+ * 
+ * <p>
+ * It then measures the latency of a yield round trip: two threads yield to
+ * each other <tt>BenchmarkKernel.roundTrips</tt> times (10000 by default),
+ * so each round trip is two context switches.
+ */
+public class BenchmarkKernel extends ThreadedKernel {
+	/**
+	 * Allocate a new benchmark kernel.
+	 */
+	public BenchmarkKernel() {
+		super();
+	}
+
+	/**
+	 * Run the benchmark.
+	 */
+	public void run() {
+		int numThreads = Config.getInteger("BenchmarkKernel.threads", 200);
+		final int numYields = Config.getInteger("BenchmarkKernel.yields", 100);
+		Lib.assertTrue(numThreads > 0 && numYields >= 0);
+
+		final Semaphore started = new Semaphore(0);
+		final Semaphore go = new Semaphore(0);
+		final Semaphore yielded = new Semaphore(0);
+
+		KThread[] threads = new KThread[numThreads];
+
+		long forkTime = System.nanoTime();
+		for (int i = 0; i < numThreads; i++) {
+			threads[i] = new KThread(new Runnable() {
+				public void run() {
+					started.V();
+					go.P();
+
+					for (int j = 0; j < numYields; j++)
+						KThread.yield();
+
+					yielded.V();
+				}
+			}).setName("bench" + i);
+
+			threads[i].fork();
+		}
+
+		for (int i = 0; i < numThreads; i++)
+			started.P();
+		forkTime = System.nanoTime() - forkTime;
+
+		long switchTime = System.nanoTime();
+		for (int i = 0; i < numThreads; i++)
+			go.V();
+		for (int i = 0; i < numThreads; i++)
+			yielded.P();
+		switchTime = System.nanoTime() - switchTime;
+
+		long finishTime = System.nanoTime();
+		for (int i = 0; i < numThreads; i++)
+			threads[i].join();
+		finishTime = System.nanoTime() - finishTime;
+
+		long numSwitches = (long) numThreads * (numYields + 1);
+
+		System.out.println("Benchmark: " + numThreads + " threads, "
+				+ numYields + " yields each");
+		System.out.println("  fork   " + microseconds(forkTime, numThreads)
+				+ " us/thread (" + forkTime / 1000000 + " ms)");
+		System.out.println("  switch " + microseconds(switchTime, numSwitches)
+				+ " us/switch (" + switchTime / 1000000 + " ms)");
+		System.out.println("  finish " + microseconds(finishTime, numThreads)
+				+ " us/thread (" + finishTime / 1000000 + " ms)");
+
+		roundTrips(Config.getInteger("BenchmarkKernel.roundTrips", 10000));
+	}
+
+	private void roundTrips(final int numRoundTrips) {
+		Lib.assertTrue(numRoundTrips > 0);
+
+		Runnable pingPong = new Runnable() {
+			public void run() {
+				for (int i = 0; i < numRoundTrips; i++)
+					KThread.yield();
+			}
+		};
+
+		KThread ping = new KThread(pingPong).setName("ping");
+		KThread pong = new KThread(pingPong).setName("pong");
+
+		long time = System.nanoTime();
+		ping.fork();
+		pong.fork();
+
+		ping.join();
+		pong.join();
+		time = System.nanoTime() - time;
+
+		System.out.println("  yield round trip "
+				+ microseconds(time, numRoundTrips) + " us");
+	}
+
+	private static String microseconds(long nanoseconds, long count) {
+		return Lib.padLeft(Lib.toFixedString(nanoseconds / 1000.0 / count, 2),
+				10);
+	}
+}
@@ -1,7 +1,6 @@
 package nachos.threads;
 
 import java.util.LinkedList;
-import java.util.Queue;
 
 import nachos.machine.*;
 
@@ -23,11 +22,16 @@ public class Condition2 {
 	 * <tt>wake()</tt>, or <tt>wakeAll()</tt>.
 	 */
 	private Lock conditionLock;
-	private Queue<KThread> waitQueue;
+
+	/**
+	 * The sleeping threads, linked through their <tt>waitPrev</tt> and
+	 * <tt>waitNext</tt> fields, so that a thread whose <tt>sleepFor()</tt>
+	 * times out can leave from the middle in constant time.
+	 */
+	private KThread waitHead = null, waitTail = null;
 	
 	public Condition2(Lock conditionLock) {
 		this.conditionLock = conditionLock;
-		waitQueue = new LinkedList<KThread>();
 	}
 
 	/**
@@ -41,7 +45,7 @@ public class Condition2 {
 		boolean intStatus = Machine.interrupt().disable();
 		
 		conditionLock.release();
-		waitQueue.offer(KThread.currentThread());
+		enqueue(KThread.currentThread());
 		
 		KThread.sleep();
 		
@@ -50,6 +54,49 @@ public class Condition2 {
 		Machine.interrupt().restore(intStatus);
 	}
 
+	/**
+	 * Atomically release the associated lock and go to sleep on this condition
+	 * variable until either (1) another thread wakes it using <tt>wake()</tt>,
+	 * or (2) the specified <i>timeout</i> elapses. The current thread must hold
+	 * the associated lock. The thread will automatically reacquire the lock
+	 * before <tt>sleepFor()</tt> returns.
+	 * 
+	 * <p>
+	 * Each thread allocates its timeout the first time it calls
+	 * <tt>sleepFor()</tt>, and reuses it for every later call.
+	 * 
+	 * @param timeout the minimum number of clock ticks to wait.
+	 */
+	public void sleepFor(long timeout) {
+		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
+		boolean intStatus = Machine.interrupt().disable();
+
+		conditionLock.release();
+
+		final KThread thread = KThread.currentThread();
+		enqueue(thread);
+
+		if (thread.waitTimeout == null) {
+			thread.waitTimeout = ThreadedKernel.alarm.setTimeout(timeout,
+					new Runnable() {
+						public void run() {
+							// timed out before anyone woke it
+							thread.waitCondition.dequeue(thread);
+							thread.ready();
+						}
+					});
+		}
+		else {
+			ThreadedKernel.alarm.setTimeout(thread.waitTimeout, timeout);
+		}
+
+		KThread.sleep();
+
+		conditionLock.acquire();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
 	/**
 	 * Wake up at most one thread sleeping on this condition variable. The
 	 * current thread must hold the associated lock.
@@ -57,8 +104,8 @@ public class Condition2 {
 	public void wake() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 		boolean intStatus = Machine.interrupt().disable();
-		if (!waitQueue.isEmpty()) {
-			waitQueue.poll().ready();
+		if (waitHead != null) {
+			wake(waitHead);
 		}
 		Machine.interrupt().restore(intStatus);
 	}
@@ -70,11 +117,51 @@ public class Condition2 {
 	public void wakeAll() {
 		Lib.assertTrue(conditionLock.isHeldByCurrentThread());
 		boolean intStatus = Machine.interrupt().disable();
-		while (!waitQueue.isEmpty()) {
-			waitQueue.poll().ready();
+		while (waitHead != null) {
+			wake(waitHead);
 		}
 		Machine.interrupt().restore(intStatus);
 	}
+
+	private void wake(KThread thread) {
+		dequeue(thread);
+
+		if (thread.waitTimeout != null)
+			thread.waitTimeout.cancel();
+
+		thread.ready();
+	}
+
+	private void enqueue(KThread thread) {
+		Lib.assertTrue(thread.waitCondition == null);
+
+		thread.waitCondition = this;
+		thread.waitPrev = waitTail;
+		thread.waitNext = null;
+
+		if (waitTail == null)
+			waitHead = thread;
+		else
+			waitTail.waitNext = thread;
+		waitTail = thread;
+	}
+
+	private void dequeue(KThread thread) {
+		Lib.assertTrue(thread.waitCondition == this);
+
+		if (thread.waitPrev == null)
+			waitHead = thread.waitNext;
+		else
+			thread.waitPrev.waitNext = thread.waitNext;
+
+		if (thread.waitNext == null)
+			waitTail = thread.waitPrev;
+		else
+			thread.waitNext.waitPrev = thread.waitPrev;
+
+		thread.waitCondition = null;
+		thread.waitPrev = thread.waitNext = null;
+	}
 	
 	private static class InterlockTest {
         private static Lock lock;
@@ -88,6 +175,7 @@ public class Condition2 {
                     cv.wake();   // signal
                     cv.sleep();  // wait
                 }
+                cv.wake();   // let the other thread finish too
                 lock.release();
             }
         }
@@ -105,9 +193,9 @@ public class Condition2 {
             pong.fork();
 
             // We need to wait for ping to finish, and the proper way
-            // to do so is to join on ping.  (Note that, when ping is
-            // done, pong is sleeping on the condition variable; if we
-            // were also to join on pong, we would block forever.)
+            // to do so is to join on ping.  (Note that whichever thread
+            // finishes first wakes the other one, so this works no
+            // matter which of them the scheduler runs first.)
             // For this to work, join must be implemented.  If you
             // have not implemented join yet, then comment out the
             // call to join and instead uncomment the loop with
@@ -119,6 +207,7 @@ public class Condition2 {
     }
 	public static void selfTest() {
         new InterlockTest();
+        cvTestSleepFor();
     }
 	
 	public static void cvTest5() {
@@ -173,4 +262,46 @@ public class Condition2 {
         for (int i = 0; i < 50; i++) { KThread.currentThread().yield(); }
     }
 
+	// sleepFor() must time out when nobody wakes it, return early when
+	// another thread does, and not leave its cancelled timeout behind
+	public static void cvTestSleepFor() {
+		final Lock lock = new Lock();
+		final Condition2 cv = new Condition2(lock);
+
+		lock.acquire();
+		long t0 = Machine.timer().getTime();
+		cv.sleepFor(2500);
+		long t1 = Machine.timer().getTime();
+		Lib.assertTrue(t1 - t0 >= 2500, "sleepFor returned early");
+		Lib.assertTrue(lock.isHeldByCurrentThread(), "lock not reacquired");
+		lock.release();
+		System.out.println("cvTestSleepFor: timed out after " + (t1 - t0) + " ticks");
+
+		final long[] slept = new long[1];
+		KThread sleeper = new KThread(new Runnable() {
+			public void run() {
+				lock.acquire();
+				long t0 = Machine.timer().getTime();
+				cv.sleepFor(50 * 1000);
+				slept[0] = Machine.timer().getTime() - t0;
+				lock.release();
+			}
+		});
+
+		sleeper.setName("Sleeper").fork();
+		ThreadedKernel.alarm.waitUntil(1000);
+
+		lock.acquire();
+		cv.wake();
+		lock.release();
+		sleeper.join();
+
+		Lib.assertTrue(slept[0] < 50 * 1000, "sleepFor was not woken early");
+		System.out.println("cvTestSleepFor: woken after " + slept[0] + " ticks");
+
+		// the timeout was cancelled; if it fired it would ready a finished
+		// thread
+		ThreadedKernel.alarm.waitUntil(60 * 1000);
+	}
+
 }
@@ -62,6 +62,9 @@ public class KThread {
 			readyQueue = ThreadedKernel.scheduler.newThreadQueue(false);
 			readyQueue.acquire(this);
 
+			idleFastForward = Config.getBoolean(
+					"ThreadedKernel.idleFastForward", false);
+
 			currentThread = this;
 			tcb = TCB.currentTCB();
 			name = "main";
@@ -126,6 +129,16 @@ public class KThread {
 		return (name + " (#" + id + ")");
 	}
 
+	/**
+	 * Get the unique identifier of this thread. Identifiers are assigned in
+	 * creation order, starting at 0.
+	 * 
+	 * @return the identifier of this thread.
+	 */
+	public int getID() {
+		return id;
+	}
+
 	/**
 	 * Deterministically and consistently compare this thread to another thread.
 	 */
@@ -203,10 +216,13 @@ public class KThread {
 		toBeDestroyed = currentThread;
 
 		currentThread.status = statusFinished;
-		// wake up old thread
-		if(!waitingThreads.empty()){
-			waitingThreads.pop().ready();
+
+		if (currentThread.joinQueue != null) {
+			KThread thread;
+			while ((thread = currentThread.joinQueue.nextThread()) != null)
+				thread.ready();
 		}
+
 		sleep();
 	}
 
@@ -285,24 +301,25 @@ public class KThread {
 	 * is not guaranteed to return. This thread must not be the current thread.
 	 */
 	public void join() {
-
-		boolean intStatus = Machine.interrupt().disable();
 		Lib.debug(dbgThread, "Joining to thread: " + toString());
-		
+
 		Lib.assertTrue(this != currentThread);
 
-		if(this.status != statusFinished){
+		boolean intStatus = Machine.interrupt().disable();
 
-			// push into stack
-			waitingThreads.push(currentThread);
-			currentThread = this;
+		if (status != statusFinished) {
+			// the joined thread owns its join queue, so it inherits the
+			// priority of the threads waiting for it to finish
+			if (joinQueue == null) {
+				joinQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+				joinQueue.acquire(this);
+			}
 
-			// the thread who calling join has called fork()
-			// so status of this thread is ready and dont need to 
-			// call ready() again otherwise there will be an error
-			waitingThreads.peek().sleep();
+			joinQueue.waitForAccess(currentThread);
+			sleep();
 		}
-		Machine.interrupt().restore(intStatus);	
+
+		Machine.interrupt().restore(intStatus);
 	}
 
 	/**
@@ -320,7 +337,7 @@ public class KThread {
 		idleThread = new KThread(new Runnable() {
 			public void run() {
 				while (true)
-					yield();
+					KThread.yield();
 			}
 		});
 		idleThread.setName("idle");
@@ -330,15 +347,34 @@ public class KThread {
 		idleThread.fork();
 	}
 
+	/**
+	 * Tests whether this is the idle thread, which runs only when no other
+	 * thread is ready.
+	 * 
+	 * @return <tt>true</tt> if this is the idle thread.
+	 */
+	public boolean isIdleThread() {
+		return this == idleThread;
+	}
+
 	/**
 	 * Determine the next thread to run, then dispatch the CPU to the thread
 	 * using <tt>run()</tt>.
+	 * 
+	 * <p>
+	 * If the <tt>ThreadedKernel.idleFastForward</tt> key is set and the idle
+	 * thread is yielding to itself, simulated time is first fast-forwarded to
+	 * the next pending interrupt, since nothing can happen until then.
 	 */
 	private static void runNextThread() {
 		KThread nextThread = readyQueue.nextThread();
-		if (nextThread == null)
+		if (nextThread == null) {
 			nextThread = idleThread;
 
+			if (idleFastForward && nextThread == currentThread)
+				Machine.interrupt().idle();
+		}
+
 		nextThread.run();
 	}
 
@@ -467,6 +503,20 @@ public class KThread {
 
 	private TCB tcb;
 
+	/** The timeout this thread sleeps on in <tt>Alarm.waitUntil()</tt>. */
+	Alarm.Timeout sleepTimeout = null;
+
+	/** The timeout this thread sleeps on in <tt>Condition2.sleepFor()</tt>. */
+	Alarm.Timeout waitTimeout = null;
+
+	/**
+	 * The condition variable this thread is sleeping on, and its neighbours
+	 * in that condition's wait list.
+	 */
+	Condition2 waitCondition = null;
+
+	KThread waitPrev = null, waitNext = null;
+
 	/**
 	 * Unique identifer for this thread. Used to deterministically compare
 	 * threads.
@@ -476,12 +526,8 @@ public class KThread {
 	/** Number of times the KThread constructor was called. */
 	private static int numCreated = 0;
 
-	/** 
-	 * Using stack to store waiting threads who called with join().
-	 * Maybe called multi-times (eg. main wait for A, A wait for B).
-	 * So, stack can adress this case.
-	 */
-	private static Stack<KThread> waitingThreads = new Stack<KThread>();
+	/** The threads waiting in <tt>join()</tt> for this thread to finish. */
+	private ThreadQueue joinQueue = null;
 
 	private static ThreadQueue readyQueue = null;
 
@@ -491,6 +537,8 @@ public class KThread {
 
 	private static KThread idleThread = null;
 
+	private static boolean idleFastForward = false;
+
 	
 	// Place Join test code in the KThread class and invoke test methods
     // from KThread.selfTest().
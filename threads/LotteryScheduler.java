@@ -2,10 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
  * A scheduler that chooses threads using a lottery.
  * 
@@ -25,6 +21,15 @@ import java.util.Iterator;
  * particular, tickets must be transferred through locks, and through joins.
  * Unlike a priority scheduler, these tickets add (as opposed to just taking the
  * maximum).
+ * 
+ * <p>
+ * Each queue keeps the tickets of its waiting threads in a Fenwick tree, so
+ * that holding a lottery and changing a thread's tickets both take
+ * <i>O(log n)</i> time. A queue that transfers tickets donates the sum of its
+ * waiting threads' tickets to its owner. When a thread's tickets change, the
+ * difference is added along the chain of queues and owners it is waiting
+ * behind, without adding up any queue again. The lotteries are drawn with
+ * <tt>Lib.random()</tt>, so they are reproducible with <tt>-s</tt>.
  */
 public class LotteryScheduler extends PriorityScheduler {
 	/**
@@ -41,7 +46,491 @@ public class LotteryScheduler extends PriorityScheduler {
 	 * @return a new lottery thread queue.
 	 */
 	public ThreadQueue newThreadQueue(boolean transferPriority) {
-		// implement me
-		return null;
+		return new LotteryQueue(transferPriority);
+	}
+
+	public int getPriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return getLotteryState(thread).tickets;
+	}
+
+	public int getEffectivePriority(KThread thread) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		return (int) Math.min(getLotteryState(thread).effective,
+				Integer.MAX_VALUE);
+	}
+
+	public void setPriority(KThread thread, int priority) {
+		Lib.assertTrue(Machine.interrupt().disabled());
+
+		Lib.assertTrue(priority >= priorityMinimum
+				&& priority <= priorityMaximum);
+
+		getLotteryState(thread).setTickets(priority);
+	}
+
+	public boolean increasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMaximum)
+			ret = false;
+		else
+			setPriority(thread, priority + 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	public boolean decreasePriority() {
+		boolean intStatus = Machine.interrupt().disable();
+		boolean ret = true;
+
+		KThread thread = KThread.currentThread();
+
+		int priority = getPriority(thread);
+		if (priority == priorityMinimum)
+			ret = false;
+		else
+			setPriority(thread, priority - 1);
+
+		Machine.interrupt().restore(intStatus);
+		return ret;
+	}
+
+	/**
+	 * Test ticket donation and the fairness of the lotteries. The test uses a
+	 * scheduler of its own, and threads that are never forked, so it can be
+	 * called from any kernel.
+	 */
+	public static void selfTest() {
+		Lib.debug(dbgThread, "Enter LotteryScheduler.selfTest");
+
+		LotteryScheduler scheduler = new LotteryScheduler();
+
+		boolean intStatus = Machine.interrupt().disable();
+
+		scheduler.chainTest();
+		scheduler.lotteryTest();
+
+		Machine.interrupt().restore(intStatus);
+	}
+
+	/**
+	 * Build a chain of two locks, as queues that transfer tickets: low holds
+	 * <i>a</i>, medium holds <i>b</i> and waits for <i>a</i>, and two more
+	 * threads wait for <i>b</i>. Every thread's effective tickets must be the
+	 * sum of its own and those of every thread waiting behind it, and must
+	 * follow changes and releases.
+	 */
+	private void chainTest() {
+		KThread low = new KThread().setName("low");
+		KThread medium = new KThread().setName("medium");
+		KThread high = new KThread().setName("high");
+		KThread higher = new KThread().setName("higher");
+
+		setPriority(low, 1);
+		setPriority(medium, 10);
+		setPriority(high, 100);
+		setPriority(higher, 1000);
+
+		ThreadQueue a = newThreadQueue(true);
+		ThreadQueue b = newThreadQueue(true);
+
+		a.acquire(low);
+		b.acquire(medium);
+		a.waitForAccess(medium);
+
+		Lib.assertTrue(getEffectivePriority(low) == 11,
+				"medium did not donate to low");
+
+		b.waitForAccess(high);
+		b.waitForAccess(higher);
+
+		Lib.assertTrue(getEffectivePriority(medium) == 1110,
+				"waiters on b did not add up in medium");
+		Lib.assertTrue(getEffectivePriority(low) == 1111,
+				"waiters on b did not add up in low");
+
+		setPriority(high, 5);
+
+		Lib.assertTrue(getEffectivePriority(low) == 1016,
+				"ticket change did not reach low");
+
+		// low releases a, which can only go to medium
+		Lib.assertTrue(a.nextThread() == medium);
+		Lib.assertTrue(getEffectivePriority(low) == 1,
+				"low kept a donation");
+		Lib.assertTrue(getEffectivePriority(medium) == 1015,
+				"medium lost a donation");
+
+		// medium releases b, and the winner gets the other waiter's tickets
+		KThread next = b.nextThread();
+		Lib.assertTrue(getEffectivePriority(medium) == 10,
+				"medium kept a donation");
+		Lib.assertTrue(getEffectivePriority(next) == 1005,
+				"new owner of b did not get the donation");
+
+		System.out.println("LotteryScheduler chain donation ok");
+	}
+
+	/**
+	 * Hold <tt>draws</tt> lotteries among four threads holding 1, 2, 3, and 4
+	 * tickets, and check that each wins in proportion to its tickets. The
+	 * draws come from <tt>Lib.random()</tt>, so the counts are fixed by the
+	 * <tt>-s</tt> seed, and the tolerance is many standard deviations wide.
+	 */
+	private void lotteryTest() {
+		ThreadQueue queue = newThreadQueue(false);
+		KThread[] threads = new KThread[4];
+		int[] wins = new int[threads.length];
+		int totalTickets = 0;
+
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new KThread().setName("lottery " + i);
+			setPriority(threads[i], i + 1);
+			totalTickets += i + 1;
+
+			queue.waitForAccess(threads[i]);
+		}
+
+		for (int draw = 0; draw < draws; draw++) {
+			KThread winner = queue.nextThread();
+
+			for (int i = 0; i < threads.length; i++) {
+				if (threads[i] == winner)
+					wins[i]++;
+			}
+
+			queue.waitForAccess(winner);
+		}
+
+		String shares = "";
+		for (int i = 0; i < threads.length; i++) {
+			double share = (double) wins[i] / draws;
+			double expected = (double) (i + 1) / totalTickets;
+
+			Lib.assertTrue(Math.abs(share - expected) < 0.02,
+					"lottery shares do not match tickets");
+
+			shares += " " + wins[i];
+		}
+
+		System.out.println("LotteryScheduler wins for 1:2:3:4 tickets:"
+				+ shares);
+	}
+
+	private static final int draws = 10000;
+
+	private static final char dbgThread = 't';
+
+	/**
+	 * The default number of tickets for a new thread.
+	 */
+	public static final int priorityDefault = 1;
+
+	/**
+	 * The minimum number of tickets that a thread can have.
+	 */
+	public static final int priorityMinimum = 1;
+
+	/**
+	 * The maximum number of tickets that a thread can have.
+	 */
+	public static final int priorityMaximum = Integer.MAX_VALUE;
+
+	/**
+	 * Return the lottery state of the specified thread.
+	 * 
+	 * @param thread the thread whose lottery state to return.
+	 * @return the lottery state of the specified thread.
+	 */
+	protected LotteryState getLotteryState(KThread thread) {
+		if (thread.schedulingState == null)
+			thread.schedulingState = new LotteryState(thread);
+
+		return (LotteryState) thread.schedulingState;
+	}
+
+	/**
+	 * Add <i>delta</i> to the effective tickets of a thread, and pass the
+	 * change on to the queue it is waiting on, and from there to that queue's
+	 * owner, and so on. A chain of threads that are deadlocked waiting for
+	 * each other is only followed once around.
+	 */
+	private void changeEffectiveTickets(LotteryState state, long delta) {
+		int pass = ++numPasses;
+
+		while (delta != 0 && state.pass != pass) {
+			state.pass = pass;
+			state.effective += delta;
+
+			LotteryQueue queue = state.waitingOn;
+			if (queue == null)
+				break;
+
+			queue.adjust(state, delta);
+
+			if (!queue.transferPriority || queue.owner == null)
+				break;
+
+			state = queue.owner;
+		}
+	}
+
+	private int numPasses = 0;
+
+	/**
+	 * A <tt>ThreadQueue</tt> that chooses threads by lottery. Each waiting
+	 * thread holds a slot, and a Fenwick tree over the slots holds their
+	 * effective tickets, so that the sum of any prefix of slots can be found
+	 * or changed in <i>O(log n)</i> time. The winner of a lottery is the
+	 * thread in the slot where the prefix sums pass the winning ticket.
+	 */
+	protected class LotteryQueue extends ThreadQueue {
+		LotteryQueue(boolean transferPriority) {
+			this.transferPriority = transferPriority;
+		}
+
+		public void waitForAccess(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			LotteryState state = getLotteryState(thread);
+			Lib.assertTrue(state.waitingOn == null);
+
+			if (numFree == 0)
+				grow();
+
+			state.waitingOn = this;
+			state.slot = freeSlots[--numFree];
+			slots[state.slot] = state;
+			numWaiting++;
+
+			adjust(state, state.effective);
+			donate(state.effective);
+		}
+
+		public void acquire(KThread thread) {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			setOwner(getLotteryState(thread));
+		}
+
+		public KThread nextThread() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			LotteryState winner = pickNextThread();
+			if (winner == null) {
+				setOwner(null);
+				return null;
+			}
+
+			remove(winner);
+			setOwner(winner);
+
+			return winner.thread;
+		}
+
+		/**
+		 * Return the next thread that <tt>nextThread()</tt> would return,
+		 * holding the lottery if it has not been held since the queue last
+		 * changed.
+		 * 
+		 * @return the next thread that <tt>nextThread()</tt> would return.
+		 */
+		protected LotteryState pickNextThread() {
+			if (numWaiting == 0)
+				return null;
+
+			if (winner == null) {
+				long ticket;
+				if (total <= Integer.MAX_VALUE)
+					ticket = Lib.random((int) total);
+				else
+					ticket = Math.min((long) (Lib.random() * total), total - 1);
+
+				winner = slots[find(ticket)];
+			}
+
+			return winner;
+		}
+
+		public void print() {
+			Lib.assertTrue(Machine.interrupt().disabled());
+
+			for (int i = 0; i < slots.length; i++) {
+				if (slots[i] != null)
+					System.out.print(slots[i].thread + "(" + slots[i].effective
+							+ ") ");
+			}
+		}
+
+		/**
+		 * Add <i>delta</i> to the tickets of a waiting thread in the tree.
+		 */
+		void adjust(LotteryState state, long delta) {
+			for (int i = state.slot + 1; i <= slots.length; i += i & -i)
+				tree[i] += delta;
+
+			total += delta;
+			winner = null;
+		}
+
+		/**
+		 * Take a waiting thread off the queue, and take its tickets away from
+		 * the owner.
+		 */
+		private void remove(LotteryState state) {
+			adjust(state, -state.effective);
+			donate(-state.effective);
+
+			slots[state.slot] = null;
+			freeSlots[numFree++] = state.slot;
+			numWaiting--;
+
+			state.waitingOn = null;
+			state.slot = -1;
+		}
+
+		/**
+		 * Give this queue to a new owner, moving the donation from the old
+		 * owner to the new one.
+		 */
+		private void setOwner(LotteryState state) {
+			if (!transferPriority)
+				return;
+
+			donate(-total);
+			owner = state;
+			donate(total);
+		}
+
+		private void donate(long delta) {
+			if (transferPriority && owner != null)
+				changeEffectiveTickets(owner, delta);
+		}
+
+		/**
+		 * Return the slot of the thread holding the specified ticket, which
+		 * must be less than <tt>total</tt>.
+		 */
+		private int find(long ticket) {
+			int index = 0;
+
+			for (int step = Integer.highestOneBit(slots.length); step > 0; step >>= 1) {
+				if (index + step <= slots.length && tree[index + step] <= ticket) {
+					index += step;
+					ticket -= tree[index];
+				}
+			}
+
+			return index;
+		}
+
+		/**
+		 * Double the number of slots, and rebuild the tree.
+		 */
+		private void grow() {
+			int oldLength = slots.length;
+			int newLength = Math.max(oldLength * 2, 4);
+
+			LotteryState[] newSlots = new LotteryState[newLength];
+			System.arraycopy(slots, 0, newSlots, 0, oldLength);
+			slots = newSlots;
+
+			tree = new long[newLength + 1];
+			for (int i = 1; i <= newLength; i++) {
+				if (slots[i - 1] != null)
+					tree[i] += slots[i - 1].effective;
+
+				int parent = i + (i & -i);
+				if (parent <= newLength)
+					tree[parent] += tree[i];
+			}
+
+			freeSlots = new int[newLength];
+			for (int i = newLength - 1; i >= oldLength; i--)
+				freeSlots[numFree++] = i;
+		}
+
+		/**
+		 * <tt>true</tt> if this queue should transfer tickets from waiting
+		 * threads to the owning thread.
+		 */
+		public boolean transferPriority;
+
+		/** The waiting thread in each slot, or <tt>null</tt>. */
+		private LotteryState[] slots = new LotteryState[0];
+
+		/** The Fenwick tree over the slots, indexed from 1. */
+		private long[] tree = new long[1];
+
+		private int[] freeSlots = new int[0];
+
+		private int numFree = 0;
+
+		private int numWaiting = 0;
+
+		/** The effective tickets of all the waiting threads. */
+		private long total = 0;
+
+		/** The winner of the last lottery, until the queue changes. */
+		private LotteryState winner = null;
+
+		/** The thread that has access, if this queue transfers tickets. */
+		private LotteryState owner = null;
+	}
+
+	/**
+	 * The lottery state of a thread: its tickets, and its effective tickets,
+	 * which also count the tickets donated by the queues it owns.
+	 * 
+	 * @see nachos.threads.KThread#schedulingState
+	 */
+	protected class LotteryState {
+		/**
+		 * Allocate a new <tt>LotteryState</tt> object and associate it with
+		 * the specified thread.
+		 * 
+		 * @param thread the thread this state belongs to.
+		 */
+		public LotteryState(KThread thread) {
+			this.thread = thread;
+		}
+
+		/**
+		 * Set the number of tickets of the associated thread.
+		 * 
+		 * @param tickets the new number of tickets.
+		 */
+		public void setTickets(int tickets) {
+			long delta = (long) tickets - this.tickets;
+			this.tickets = tickets;
+
+			changeEffectiveTickets(this, delta);
+		}
+
+		/** The thread with which this object is associated. */
+		protected KThread thread;
+
+		/** The tickets of the associated thread. */
+		protected int tickets = priorityDefault;
+
+		/** The tickets of the associated thread plus all donated tickets. */
+		protected long effective = priorityDefault;
+
+		/** The queue the associated thread is waiting on, if any. */
+		protected LotteryQueue waitingOn = null;
+
+		/** The slot of this thread in <tt>waitingOn</tt>. */
+		int slot = -1;
+
+		/** The last pass of <tt>changeEffectiveTickets()</tt> to visit. */
+		int pass = 0;
 	}
 }
@@ -2,10 +2,6 @@ package nachos.threads;
 
 import nachos.machine.*;
 
-import java.util.TreeSet;
-import java.util.HashSet;
-import java.util.Iterator;
-
 /**
  * A scheduler that chooses threads based on their priorities.
  * 
@@ -97,6 +93,168 @@ public class PriorityScheduler extends Scheduler {
 		return ret;
 	}
 
+	/**
+	 * Test priority donation. Must be called from the main thread of a kernel
+	 * whose scheduler is a <tt>PriorityScheduler</tt>.
+	 */
+	public static void selfTest() {
+		Lib.debug(dbgThread, "Enter PriorityScheduler.selfTest");
+
+		Lib.assertTrue(
+				ThreadedKernel.scheduler.getClass() == PriorityScheduler.class,
+				"ThreadedKernel.scheduler is not a PriorityScheduler");
+
+		setTestPriority(KThread.currentThread(), priorityMaximum);
+
+		chainTest();
+		joinTest();
+
+		setTestPriority(KThread.currentThread(), priorityDefault);
+	}
+
+	/**
+	 * A low priority thread holds lock <i>a</i>, a medium priority thread
+	 * holds lock <i>b</i> and waits for <i>a</i>, and a high priority thread
+	 * waits for <i>b</i>. The high priority must be donated along the whole
+	 * chain, and each thread must drop back to its own priority as soon as it
+	 * releases the lock it was donated through.
+	 */
+	private static void chainTest() {
+		final Lock a = new Lock();
+		final Lock b = new Lock();
+		final Semaphore go = new Semaphore(0);
+		final int[] afterRelease = new int[2];
+
+		KThread low = new KThread(new Runnable() {
+			public void run() {
+				a.acquire();
+				go.P();
+				a.release();
+				afterRelease[0] = getTestPriority(KThread.currentThread());
+			}
+		}).setName("low");
+
+		KThread medium = new KThread(new Runnable() {
+			public void run() {
+				b.acquire();
+				a.acquire();
+				a.release();
+				b.release();
+				afterRelease[1] = getTestPriority(KThread.currentThread());
+			}
+		}).setName("medium");
+
+		KThread high = new KThread(new Runnable() {
+			public void run() {
+				b.acquire();
+				b.release();
+			}
+		}).setName("high");
+
+		setTestPriority(low, 1);
+		setTestPriority(medium, 3);
+		setTestPriority(high, 6);
+
+		low.fork();
+		runOthers();
+		medium.fork();
+		runOthers();
+
+		Lib.assertTrue(getTestPriority(low) == 3,
+				"medium did not donate to low");
+
+		high.fork();
+		runOthers();
+
+		Lib.assertTrue(getTestPriority(medium) == 6,
+				"high did not donate to medium");
+		Lib.assertTrue(getTestPriority(low) == 6,
+				"high did not donate to low through medium");
+
+		// let the chain unwind before joining, which would donate to it
+		go.V();
+		runOthers();
+
+		low.join();
+		medium.join();
+		high.join();
+
+		Lib.assertTrue(afterRelease[0] == 1, "low kept a donation");
+		Lib.assertTrue(afterRelease[1] == 3, "medium kept a donation");
+
+		System.out.println("PriorityScheduler chain donation ok");
+	}
+
+	/**
+	 * A high priority thread joins a low priority thread, which must run with
+	 * the joiner's priority until it finishes.
+	 */
+	private static void joinTest() {
+		final Semaphore hold = new Semaphore(0);
+		final int[] whileJoined = new int[1];
+
+		final KThread low = new KThread(new Runnable() {
+			public void run() {
+				hold.P();
+				whileJoined[0] = getTestPriority(KThread.currentThread());
+			}
+		}).setName("low");
+
+		KThread high = new KThread(new Runnable() {
+			public void run() {
+				low.join();
+			}
+		}).setName("high");
+
+		setTestPriority(low, 0);
+		setTestPriority(high, 5);
+
+		low.fork();
+		high.fork();
+		runOthers();
+
+		Lib.assertTrue(getTestPriority(low) == 5,
+				"joiner did not donate to low");
+
+		hold.V();
+		runOthers();
+
+		high.join();
+
+		Lib.assertTrue(whileJoined[0] == 5, "low lost the join donation");
+
+		System.out.println("PriorityScheduler join donation ok");
+	}
+
+	/**
+	 * Let every other ready thread run until it blocks or finishes, by
+	 * yielding at the lowest priority.
+	 */
+	private static void runOthers() {
+		KThread current = KThread.currentThread();
+		int priority = getTestPriority(current);
+
+		setTestPriority(current, priorityMinimum);
+		KThread.yield();
+		setTestPriority(current, priority);
+	}
+
+	private static int getTestPriority(KThread thread) {
+		boolean intStatus = Machine.interrupt().disable();
+		int priority = ThreadedKernel.scheduler.getEffectivePriority(thread);
+		Machine.interrupt().restore(intStatus);
+
+		return priority;
+	}
+
+	private static void setTestPriority(KThread thread, int priority) {
+		boolean intStatus = Machine.interrupt().disable();
+		ThreadedKernel.scheduler.setPriority(thread, priority);
+		Machine.interrupt().restore(intStatus);
+	}
+
+	private static final char dbgThread = 't';
+
 	/**
 	 * The default priority for a new thread. Do not change this value.
 	 */
@@ -126,7 +284,16 @@ public class PriorityScheduler extends Scheduler {
 	}
 
 	/**
-	 * A <tt>ThreadQueue</tt> that sorts threads by priority.
+	 * A <tt>ThreadQueue</tt> that sorts threads by priority. The waiting
+	 * threads are kept in a binary heap ordered by effective priority, and
+	 * among threads of the same effective priority, by how long they have
+	 * been waiting. Each thread records its position in the heap, so a thread
+	 * whose effective priority changes while it waits can be moved to its new
+	 * position in <i>O(log n)</i> time.
+	 * 
+	 * <p>
+	 * If the queue transfers priority, it donates the effective priority of
+	 * the thread at the top of the heap to its owner whenever that changes.
 	 */
 	protected class PriorityQueue extends ThreadQueue {
 		PriorityQueue(boolean transferPriority) {
@@ -145,8 +312,17 @@ public class PriorityScheduler extends Scheduler {
 
 		public KThread nextThread() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me
-			return null;
+
+			ThreadState next = pickNextThread();
+			if (next == null) {
+				setOwner(null);
+				return null;
+			}
+
+			remove(next);
+			next.acquire(this);
+
+			return next.thread;
 		}
 
 		/**
@@ -156,13 +332,144 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the next thread that <tt>nextThread()</tt> would return.
 		 */
 		protected ThreadState pickNextThread() {
-			// implement me
-			return null;
+			return (size == 0) ? null : heap[0];
 		}
 
 		public void print() {
 			Lib.assertTrue(Machine.interrupt().disabled());
-			// implement me (if you want)
+
+			for (int i = 0; i < size; i++)
+				System.out.print(heap[i].thread + "(" + heap[i].effective + ") ");
+		}
+
+		/**
+		 * Add a thread to the heap, behind all the threads of the same
+		 * effective priority that are already waiting.
+		 */
+		void add(ThreadState state) {
+			if (size == heap.length) {
+				ThreadState[] newHeap = new ThreadState[heap.length * 2];
+				System.arraycopy(heap, 0, newHeap, 0, size);
+				heap = newHeap;
+			}
+
+			state.waitSequence = numWaits++;
+			state.heapIndex = size;
+			heap[size++] = state;
+
+			siftUp(state.heapIndex);
+			donate();
+		}
+
+		/**
+		 * Remove a waiting thread from the heap.
+		 */
+		void remove(ThreadState state) {
+			int index = state.heapIndex;
+			Lib.assertTrue(heap[index] == state);
+
+			ThreadState last = heap[--size];
+			heap[size] = null;
+			state.heapIndex = -1;
+
+			if (index < size) {
+				heap[index] = last;
+				last.heapIndex = index;
+				siftUp(index);
+				siftDown(last.heapIndex);
+			}
+
+			donate();
+		}
+
+		/**
+		 * Move a waiting thread whose effective priority has changed to its
+		 * new position in the heap.
+		 */
+		void update(ThreadState state) {
+			siftUp(state.heapIndex);
+			siftDown(state.heapIndex);
+			donate();
+		}
+
+		/**
+		 * Give this queue to a new owner, taking the donation away from the
+		 * old one.
+		 */
+		void setOwner(ThreadState state) {
+			if (!transferPriority)
+				return;
+
+			if (owner != null && donation != noDonation)
+				owner.changeDonation(donation, noDonation);
+
+			owner = state;
+			donation = noDonation;
+			donate();
+		}
+
+		/**
+		 * Donate the effective priority of the thread at the top of the heap
+		 * to the owner, if it has changed since the last donation.
+		 */
+		private void donate() {
+			if (!transferPriority || owner == null)
+				return;
+
+			int top = (size == 0) ? noDonation : heap[0].effective;
+			if (top == donation)
+				return;
+
+			int old = donation;
+			donation = top;
+			owner.changeDonation(old, top);
+		}
+
+		private boolean before(ThreadState a, ThreadState b) {
+			if (a.effective != b.effective)
+				return a.effective > b.effective;
+
+			return a.waitSequence < b.waitSequence;
+		}
+
+		private void siftUp(int index) {
+			ThreadState state = heap[index];
+
+			while (index > 0) {
+				int parent = (index - 1) / 2;
+				if (!before(state, heap[parent]))
+					break;
+
+				heap[index] = heap[parent];
+				heap[index].heapIndex = index;
+				index = parent;
+			}
+
+			heap[index] = state;
+			state.heapIndex = index;
+		}
+
+		private void siftDown(int index) {
+			ThreadState state = heap[index];
+
+			while (true) {
+				int child = 2 * index + 1;
+				if (child >= size)
+					break;
+
+				if (child + 1 < size && before(heap[child + 1], heap[child]))
+					child++;
+
+				if (!before(heap[child], state))
+					break;
+
+				heap[index] = heap[child];
+				heap[index].heapIndex = index;
+				index = child;
+			}
+
+			heap[index] = state;
+			state.heapIndex = index;
 		}
 
 		/**
@@ -170,6 +477,20 @@ public class PriorityScheduler extends Scheduler {
 		 * threads to the owning thread.
 		 */
 		public boolean transferPriority;
+
+		/** The waiting threads, as a binary heap. */
+		private ThreadState[] heap = new ThreadState[8];
+
+		private int size = 0;
+
+		/** The number of threads that have ever waited on this queue. */
+		private long numWaits = 0;
+
+		/** The thread that has access, if this queue transfers priority. */
+		private ThreadState owner = null;
+
+		/** The priority this queue currently donates to its owner. */
+		private int donation = noDonation;
 	}
 
 	/**
@@ -177,6 +498,14 @@ public class PriorityScheduler extends Scheduler {
 	 * priority, its effective priority, any objects it owns, and the queue it's
 	 * waiting for, if any.
 	 * 
+	 * <p>
+	 * Rather than the queues it owns, a thread keeps a count of how many of
+	 * them donate each priority, so that its effective priority can be found
+	 * without looking at any waiting thread. When its effective priority
+	 * changes, the change is passed on to the queue it is waiting on, and from
+	 * there to that queue's owner, until it reaches a thread whose effective
+	 * priority does not change.
+	 * 
 	 * @see nachos.threads.KThread#schedulingState
 	 */
 	protected class ThreadState {
@@ -207,8 +536,7 @@ public class PriorityScheduler extends Scheduler {
 		 * @return the effective priority of the associated thread.
 		 */
 		public int getEffectivePriority() {
-			// implement me
-			return priority;
+			return effective;
 		}
 
 		/**
@@ -222,7 +550,7 @@ public class PriorityScheduler extends Scheduler {
 
 			this.priority = priority;
 
-			// implement me
+			updateEffectivePriority();
 		}
 
 		/**
@@ -238,7 +566,10 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#waitForAccess
 		 */
 		public void waitForAccess(PriorityQueue waitQueue) {
-			// implement me
+			Lib.assertTrue(waitingOn == null);
+
+			waitingOn = waitQueue;
+			waitQueue.add(this);
 		}
 
 		/**
@@ -252,7 +583,42 @@ public class PriorityScheduler extends Scheduler {
 		 * @see nachos.threads.ThreadQueue#nextThread
 		 */
 		public void acquire(PriorityQueue waitQueue) {
-			// implement me
+			if (waitingOn == waitQueue)
+				waitingOn = null;
+
+			waitQueue.setOwner(this);
+		}
+
+		/**
+		 * Replace a donation of priority <i>oldDonation</i> from one of the
+		 * queues this thread owns with a donation of <i>newDonation</i>.
+		 * Either may be <tt>noDonation</tt>.
+		 */
+		void changeDonation(int oldDonation, int newDonation) {
+			if (oldDonation != noDonation)
+				donations[oldDonation]--;
+			if (newDonation != noDonation)
+				donations[newDonation]++;
+
+			updateEffectivePriority();
+		}
+
+		private void updateEffectivePriority() {
+			int newEffective = priority;
+			for (int p = priorityMaximum; p > newEffective; p--) {
+				if (donations[p] > 0) {
+					newEffective = p;
+					break;
+				}
+			}
+
+			if (newEffective == effective)
+				return;
+
+			effective = newEffective;
+
+			if (waitingOn != null)
+				waitingOn.update(this);
 		}
 
 		/** The thread with which this object is associated. */
@@ -260,5 +626,23 @@ public class PriorityScheduler extends Scheduler {
 
 		/** The priority of the associated thread. */
 		protected int priority;
+
+		/** The effective priority of the associated thread. */
+		protected int effective;
+
+		/** The queue the associated thread is waiting on, if any. */
+		protected PriorityQueue waitingOn = null;
+
+		/** The position of this thread in the heap of <tt>waitingOn</tt>. */
+		int heapIndex = -1;
+
+		/** When this thread started waiting, for FIFO order within a priority. */
+		long waitSequence;
+
+		/** How many owned queues donate each priority. */
+		private int[] donations = new int[priorityMaximum + 1];
 	}
+
+	/** The donation of a queue that has no waiting threads. */
+	private static final int noDonation = -1;
 }
@@ -52,11 +52,15 @@ public class ThreadedKernel extends Kernel {
 		// if (Machine.bank() != null) {
 		// 	ElevatorBank.selfTest();
 		// }
-		// Alarm.selfTest();
+		Alarm.selfTest();
 		// KThread.joinTest();
 		// Condition.selfTest();
-		// Condition2.selfTest();
+		Condition2.selfTest();
 		// GameMatch.selfTest();
+		if (scheduler.getClass() == PriorityScheduler.class) {
+			PriorityScheduler.selfTest();
+		}
+		LotteryScheduler.selfTest();
 		// KThread.homeworkTest();
 	}
 
@@ -97,4 +101,6 @@ public class ThreadedKernel extends Kernel {
 	private static Rider dummy6 = null;
 
 	private static ElevatorController dummy7 = null;
+
+	private static BenchmarkKernel dummy8 = null;
 }
@@ -0,0 +1,312 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A statistical profiler for the whole system. On every timer interrupt it
+ * samples the processor that was interrupted: the user PC, the running thread,
+ * the process that thread belongs to, and whether the processor was in the
+ * kernel. Each sample only increments a few counters in primitive arrays, so
+ * unlike <tt>Processor.profile</tt> it can stay on for long multi-process
+ * workloads.
+ * 
+ * <p>
+ * Samples are counted per thread, indexed by <tt>KThread.getID()</tt>, and per
+ * process, indexed by PID. Each process also counts its user PCs in an array
+ * covering the read-only sections of its executable, sized when the process
+ * is loaded. The interrupt handler allocates nothing except when a thread with
+ * a new, higher ID shows up and the thread arrays have to grow. When the
+ * kernel terminates, the profiler prints how the samples were divided among
+ * processes and threads, and the hottest procedures of each process, named
+ * from its COFF symbol table.
+ * 
+ * <p>
+ * The profiler is enabled by the <tt>Kernel.sampleProfile</tt> key.
+ */
+public class SamplingProfiler {
+	/**
+	 * Allocate a new sampling profiler, and chain it in front of the current
+	 * timer interrupt handler. The profiler samples on the periodic timer
+	 * interrupt, so it turns that back on if a tickless kernel turned it off.
+	 */
+	public SamplingProfiler() {
+		final Runnable handler = Machine.timer().getInterruptHandler();
+
+		Machine.timer().setInterruptHandler(new Runnable() {
+			public void run() {
+				// deadlines come at times the kernel chose, which would
+				// bias the samples
+				if (Machine.timer().isPeriodicInterrupt())
+					sample();
+
+				if (handler != null)
+					handler.run();
+			}
+		});
+
+		Machine.timer().setPeriodic(true);
+	}
+
+	/**
+	 * Record the executable a process has loaded, so that its samples can be
+	 * attributed to procedures. Must be called while the executable is open.
+	 * 
+	 * @param process the process.
+	 * @param coff the executable it loaded.
+	 */
+	public void addProcess(UserProcess process, Coff coff) {
+		int firstVPN = Integer.MAX_VALUE, endVPN = 0;
+
+		for (int s = 0; s < coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+			if (!section.isReadOnly())
+				continue;
+
+			firstVPN = Math.min(firstVPN, section.getFirstVPN());
+			endVPN = Math.max(endVPN, section.getFirstVPN()
+					+ section.getLength());
+		}
+		if (firstVPN > endVPN)
+			firstVPN = endVPN;
+
+		ProcessTotals totals = new ProcessTotals(process.PID, coff.getName(),
+				coff.getSymbolTable(), firstVPN * Processor.pageSize,
+				(endVPN - firstVPN) * Processor.pageSize / 4);
+
+		// the timer interrupt only fires between instructions or when the
+		// kernel ticks, so the grown array is published atomically
+		if (process.PID >= processTotals.length) {
+			ProcessTotals[] grown = new ProcessTotals[Math.max(process.PID + 1,
+					processTotals.length * 2)];
+			System.arraycopy(processTotals, 0, grown, 0, processTotals.length);
+			processTotals = grown;
+		}
+		processTotals[process.PID] = totals;
+	}
+
+	/**
+	 * Take one sample. Called from the timer interrupt handler.
+	 */
+	private void sample() {
+		KThread thread = KThread.currentThread();
+		int mode = Machine.interrupt().interruptedKernel() ? kernelMode
+				: userMode;
+
+		totals[mode]++;
+		if (thread.isIdleThread())
+			idleSamples++;
+
+		int id = thread.getID();
+		if (id >= threadNames.length)
+			growThreads(id);
+
+		threadNames[id] = thread.getName();
+		threadCounts[mode][id]++;
+
+		if (!(thread instanceof UThread))
+			return;
+
+		int pid = ((UThread) thread).process.PID;
+		ProcessTotals process = (pid < processTotals.length) ? processTotals[pid]
+				: null;
+		if (process == null)
+			return;
+
+		process.counts[mode]++;
+		if (mode == userMode)
+			process.add(Machine.processor().readRegister(Processor.regPC));
+	}
+
+	private void growThreads(int id) {
+		int length = Math.max(id + 1, threadNames.length * 2);
+
+		String[] names = new String[length];
+		System.arraycopy(threadNames, 0, names, 0, threadNames.length);
+		threadNames = names;
+
+		for (int mode = 0; mode < threadCounts.length; mode++) {
+			long[] counts = new long[length];
+			System.arraycopy(threadCounts[mode], 0, counts, 0,
+					threadCounts[mode].length);
+			threadCounts[mode] = counts;
+		}
+	}
+
+	/**
+	 * Print the per-process and per-thread profile.
+	 */
+	public void report() {
+		long total = totals[userMode] + totals[kernelMode];
+
+		System.out.println("Sampling profile: " + total + " samples, user "
+				+ percent(totals[userMode], total) + ", kernel "
+				+ percent(totals[kernelMode], total) + ", idle "
+				+ percent(idleSamples, total));
+
+		if (total == 0)
+			return;
+
+		System.out.println("Processes:");
+		for (int pid = 0; pid < processTotals.length; pid++) {
+			ProcessTotals process = processTotals[pid];
+			if (process == null)
+				continue;
+
+			long samples = process.counts[userMode] + process.counts[kernelMode];
+			if (samples == 0)
+				continue;
+
+			System.out.println("  " + Lib.padLeft(percent(samples, total), 7)
+					+ " " + Lib.padLeft("" + samples, 8) + "  pid "
+					+ process.pid + " " + process.name + " (user "
+					+ percent(process.counts[userMode], samples) + ")");
+
+			printTop(process.procedures(), process.counts[userMode], "    ");
+		}
+
+		HashMap<String, Long> byThread = new HashMap<String, Long>();
+		HashMap<String, Long> kernelByThread = new HashMap<String, Long>();
+		for (int id = 0; id < threadNames.length; id++) {
+			if (threadNames[id] == null)
+				continue;
+
+			String name = threadNames[id] + " (#" + id + ")";
+			byThread.put(name, threadCounts[userMode][id]
+					+ threadCounts[kernelMode][id]);
+			kernelByThread.put(name, threadCounts[kernelMode][id]);
+		}
+
+		System.out.println("Threads:");
+		ArrayList<Map.Entry<String, Long>> entries = sorted(byThread);
+		for (int i = 0; i < entries.size() && i < hotListLength; i++) {
+			Map.Entry<String, Long> entry = entries.get(i);
+			System.out.println("  "
+					+ Lib.padLeft(percent(entry.getValue(), total), 7) + " "
+					+ Lib.padLeft("" + entry.getValue(), 8) + "  "
+					+ entry.getKey() + " (kernel "
+					+ percent(kernelByThread.get(entry.getKey()),
+							entry.getValue()) + ")");
+		}
+	}
+
+	private static void printTop(Map<String, Long> totals, long total,
+			String indent) {
+		ArrayList<Map.Entry<String, Long>> entries = sorted(totals);
+
+		for (int i = 0; i < entries.size() && i < procedureListLength; i++) {
+			Map.Entry<String, Long> entry = entries.get(i);
+			System.out.println(indent
+					+ Lib.padLeft(percent(entry.getValue(), total), 7) + " "
+					+ Lib.padLeft("" + entry.getValue(), 8) + "  "
+					+ entry.getKey());
+		}
+	}
+
+	private static ArrayList<Map.Entry<String, Long>> sorted(
+			Map<String, Long> totals) {
+		ArrayList<Map.Entry<String, Long>> entries;
+		entries = new ArrayList<Map.Entry<String, Long>>(totals.entrySet());
+
+		Collections.sort(entries, new Comparator<Map.Entry<String, Long>>() {
+			public int compare(Map.Entry<String, Long> a,
+					Map.Entry<String, Long> b) {
+				int order = b.getValue().compareTo(a.getValue());
+				return (order != 0) ? order : a.getKey().compareTo(b.getKey());
+			}
+		});
+
+		return entries;
+	}
+
+	private static String percent(long count, long total) {
+		if (total == 0)
+			return "0.0%";
+
+		return Lib.toFixedString(100.0 * count / total, 1) + "%";
+	}
+
+	/** The samples taken while a process was running. */
+	private static class ProcessTotals {
+		ProcessTotals(int pid, String name, CoffSymbolTable symbols,
+				int textBase, int textWords) {
+			this.pid = pid;
+			this.name = name;
+			this.symbols = symbols;
+			this.textBase = textBase;
+			this.pcCounts = new long[textWords];
+		}
+
+		void add(int pc) {
+			int word = (pc - textBase) >>> 2;
+
+			if (pc >= textBase && word < pcCounts.length)
+				pcCounts[word]++;
+			else
+				outsideText++;
+		}
+
+		Map<String, Long> procedures() {
+			HashMap<String, Long> procedures = new HashMap<String, Long>();
+
+			for (int word = 0; word < pcCounts.length; word++) {
+				if (pcCounts[word] == 0)
+					continue;
+
+				int pc = textBase + word * 4;
+				int symbol = symbols.lookup(pc);
+				String name = (symbol == -1) ? "0x" + Lib.toHexString(pc)
+						: symbols.getName(symbol);
+
+				Long old = procedures.get(name);
+				procedures.put(name, (old == null) ? pcCounts[word] : old
+						+ pcCounts[word]);
+			}
+
+			if (outsideText != 0)
+				procedures.put("(outside text)", outsideText);
+
+			return procedures;
+		}
+
+		final int pid;
+
+		final String name;
+
+		final CoffSymbolTable symbols;
+
+		final long[] counts = new long[2];
+
+		/** The address the first entry of <tt>pcCounts</tt> counts. */
+		final int textBase;
+
+		/** The samples at each word of the read-only sections. */
+		final long[] pcCounts;
+
+		long outsideText = 0;
+	}
+
+	private long[] totals = new long[2];
+
+	private long idleSamples = 0;
+
+	/** The name each thread had when it was last sampled, by thread ID. */
+	private String[] threadNames = new String[64];
+
+	/** The samples taken in each mode, by thread ID. */
+	private long[][] threadCounts = new long[2][64];
+
+	private ProcessTotals[] processTotals = new ProcessTotals[16];
+
+	private static final int userMode = 0, kernelMode = 1;
+
+	private static final int hotListLength = 20;
+
+	private static final int procedureListLength = 5;
+}
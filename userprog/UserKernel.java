@@ -46,6 +46,9 @@ public class UserKernel extends ThreadedKernel {
 	public static Lock lock;
 
 	public static Map<Integer, UserProcess> allProcesses;
+
+	/** The sampling profiler, or <tt>null</tt> if it is not enabled. */
+	public static SamplingProfiler sampler = null;
 	
 	/**
 	 * Allocate a new user kernel.
@@ -83,7 +86,9 @@ public class UserKernel extends ThreadedKernel {
 				exceptionHandler();
 			}
 		});
-		
+
+		if (Config.getBoolean("Kernel.sampleProfile", false))
+			sampler = new SamplingProfiler();
 	}
 
 	/**
@@ -159,6 +164,9 @@ public class UserKernel extends ThreadedKernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		if (sampler != null)
+			sampler.report();
+
 		super.terminate();
 	}
 
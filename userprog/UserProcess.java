@@ -95,6 +95,7 @@ public class UserProcess {
 	 * Called by <tt>UThread.saveState()</tt>.
 	 */
 	public void saveState() {
+		saveCounters();
 	}
 
 	/**
@@ -103,6 +104,32 @@ public class UserProcess {
 	 */
 	public void restoreState() {
 		Machine.processor().setPageTable(pageTable);
+		restoreCounters();
+	}
+
+	/**
+	 * Start counting the processor's performance counters towards this
+	 * process. Called whenever the process starts running on a processor.
+	 */
+	protected void restoreCounters() {
+		Processor processor = Machine.processor();
+
+		for (int i = 0; i < Processor.numCounters; i++)
+			counterBase[i] = processor.readCounter(i);
+	}
+
+	/**
+	 * Add the counts since the last call to <tt>restoreCounters()</tt> or
+	 * <tt>saveCounters()</tt> to this process's performance counters.
+	 */
+	protected void saveCounters() {
+		Processor processor = Machine.processor();
+
+		for (int i = 0; i < Processor.numCounters; i++) {
+			long value = processor.readCounter(i);
+			counters[i] += value - counterBase[i];
+			counterBase[i] = value;
+		}
 	}
 
 	/**
@@ -173,7 +200,8 @@ public class UserProcess {
 		Lib.assertTrue(offset >= 0 && length >= 0
 				&& offset + length <= data.length);
 		
-		byte[] memory = Machine.processor().getMemory();
+		Processor processor = Machine.processor();
+		int memorySize = processor.getNumPhysPages() * pageSize;
 		if (vaddr < 0 || vaddr >= pageTable.length * (pageSize-1))   
 		    return 0;
 
@@ -190,12 +218,12 @@ public class UserProcess {
 			
 			int newVaddr = pageTable[vpn].ppn * pageSize + offsetCur;
 			//int newVaddr = Processor.makeAddress(pageTable[vpn].ppn, offsetCur);
-			if (newVaddr < 0 || newVaddr >= memory.length)
+			if (newVaddr < 0 || newVaddr >= memorySize)
 				return amount;
 			// pageSize = 0x400;
 			// bytes that can still read from this page
 			int rest = Math.min(Processor.pageSize - offsetCur, length - amount);
-			System.arraycopy(memory, newVaddr, data, offset + amount, rest);
+			processor.readPhysical(newVaddr, data, offset + amount, rest);
 			amount += rest;
 		}
 
@@ -241,7 +269,8 @@ public class UserProcess {
 		Lib.assertTrue(offset >= 0 && length >= 0
 				&& offset + length <= data.length);
 
-		byte[] memory = Machine.processor().getMemory();
+		Processor processor = Machine.processor();
+		int memorySize = processor.getNumPhysPages() * pageSize;
 		if (vaddr < 0 || vaddr >= pageTable.length * (pageSize-1))   
 		    return 0;
 		//virtual 
@@ -255,12 +284,12 @@ public class UserProcess {
 			int offsetCur = Processor.offsetFromAddress(vaddr + amount);
 			int newVaddr = pageTable[vpn].ppn * pageSize + offsetCur;
 			//int newVaddr = Processor.makeAddress(pageTable[vpn].ppn, offsetCur);
-			if (newVaddr < 0 || newVaddr >= memory.length)
+			if (newVaddr < 0 || newVaddr >= memorySize)
 				return amount;
 			// pageSize = 0x400;
 			// bytes that can still read from this page
 			int rest = Math.min(Processor.pageSize - offsetCur, length - amount);
-			System.arraycopy(data, offset + amount, memory, newVaddr, rest);
+			processor.writePhysical(newVaddr, data, offset + amount, rest);
 			amount += rest;
 		}
 		
@@ -327,6 +356,9 @@ public class UserProcess {
 			return false;
 		}
 
+		if (UserKernel.sampler != null)
+			UserKernel.sampler.addProcess(this, coff);
+
 		// program counter initially points at the program entry point
 		initialPC = coff.getEntryPoint();
 
@@ -476,6 +508,9 @@ public class UserProcess {
 			System.out.println(key);
 			UserKernel.allProcesses.get(key).unloadSections();
 		}
+		if (UserKernel.sampler != null)
+			UserKernel.sampler.report();
+
 		Machine.halt();
 		Lib.assertNotReached("Machine.halt() did not halt machine!");
 		return 0;
@@ -755,10 +790,35 @@ public class UserProcess {
 	}
 
 
+	/**
+	 * Handle the perfcounters() system call: copy up to <i>count</i> of this
+	 * process's performance counters, as 64-bit integers, to the array at
+	 * <i>vaddr</i>.
+	 */
+	private int handlePerfCounters(int vaddr, int count) {
+		if (count < 0)
+			return -1;
+
+		count = Math.min(count, Processor.numCounters);
+
+		saveCounters();
+
+		byte[] buffer = new byte[count * 8];
+		for (int i = 0; i < count; i++) {
+			Lib.bytesFromInt(buffer, i * 8, (int) counters[i]);
+			Lib.bytesFromInt(buffer, i * 8 + 4, (int) (counters[i] >>> 32));
+		}
+
+		if (writeVirtualMemory(vaddr, buffer) != buffer.length)
+			return -1;
+
+		return count;
+	}
+
 	private static final int syscallHalt = 0, syscallExit = 1, syscallExec = 2,
 			syscallJoin = 3, syscallCreate = 4, syscallOpen = 5,
 			syscallRead = 6, syscallWrite = 7, syscallClose = 8,
-			syscallUnlink = 9;
+			syscallUnlink = 9, syscallPerfCounters = 13;
 
 	private static final int maxBufferSize = 1024;
 	
@@ -828,6 +888,10 @@ public class UserProcess {
 	 * <td>9</td>
 	 * <td><tt>int  unlink(char *name);</tt></td>
 	 * </tr>
+	 * <tr>
+	 * <td>13</td>
+	 * <td><tt>int  perfcounters(long long *counters, int count);</tt></td>
+	 * </tr>
 	 * </table>
 	 * 
 	 * @param syscall the syscall number.
@@ -859,6 +923,8 @@ public class UserProcess {
 			return handleExec(a0, a1, a2);	
 		case syscallJoin:
 			return handleJoin(a0, a1);	
+		case syscallPerfCounters:
+			return handlePerfCounters(a0, a1);
 
 		default:
 			Lib.debug(dbgProcess, "Unknown syscall " + syscall);
@@ -911,6 +977,12 @@ public class UserProcess {
 
 	private int initialPC, initialSP;
 
+	/** This process's performance counters, indexed like the processor's. */
+	private long[] counters = new long[Processor.numCounters];
+
+	/** The processor's counters when they were last added to ours. */
+	private long[] counterBase = new long[Processor.numCounters];
+
 	private int argc, argv;
 
 	private static final int pageSize = Processor.pageSize;
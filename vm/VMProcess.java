@@ -2,7 +2,6 @@ package nachos.vm;
 import java.awt.SystemTray;
 import java.util.*;
 
-import jdk.nashorn.internal.ir.Flags;
 import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
@@ -63,7 +62,8 @@ public class VMProcess extends UserProcess {
 		Lib.assertTrue(offset >= 0 && length >= 0
 				&& offset + length <= data.length);
 		
-		byte[] memory = Machine.processor().getMemory();
+		Processor processor = Machine.processor();
+		int memorySize = processor.getNumPhysPages() * pageSize;
 		if (vaddr < 0 || vaddr >= pageTable.length * (pageSize-1)) {
 			return 0;
 		}
@@ -79,7 +79,7 @@ public class VMProcess extends UserProcess {
 			int paddr = pageTable[vpn].ppn * pageSize + offsetCur;
 			pageTable[vpn].used = true;
 			
-			if (paddr < 0 || paddr >= memory.length){
+			if (paddr < 0 || paddr >= memorySize){
 				Lib.assertNotReached("Invalid paddr in readVirtualMemory!");
 				return amount;
 			}
@@ -91,7 +91,7 @@ public class VMProcess extends UserProcess {
 			VMKernel.pinCountLock.acquire();
 			VMKernel.pinCount ++;
 			VMKernel.unpinnedLock.acquire();
-			System.arraycopy(memory, paddr, data, offset + amount, rest);
+			processor.readPhysical(paddr, data, offset + amount, rest);
 			VMKernel.invertedPT[ppn].pinned = false;
 			VMKernel.pinCount --;
 			VMKernel.pinCountLock.release();
@@ -106,7 +106,8 @@ public class VMProcess extends UserProcess {
 
 		Lib.assertTrue(offset >= 0 && length >= 0
 				&& offset + length <= data.length);
-		byte[] memory = Machine.processor().getMemory();
+		Processor processor = Machine.processor();
+		int memorySize = processor.getNumPhysPages() * pageSize;
 		if (vaddr < 0 || vaddr >= pageTable.length * (pageSize-1)) {
 			return 0;
 		}
@@ -131,7 +132,7 @@ public class VMProcess extends UserProcess {
 			// System.out.println(paddr);
 			// System.out.println(pageTable[vpn].ppn);
 			// System.out.println("-------test-------");
-			if (paddr < 0 || paddr >= memory.length){
+			if (paddr < 0 || paddr >= memorySize){
 				Lib.assertNotReached("Invalid paddr in writeVirtualMemory!");
 	
 				return amount;
@@ -142,7 +143,7 @@ public class VMProcess extends UserProcess {
 			VMKernel.pinCountLock.acquire();
 			VMKernel.pinCount ++;
 			VMKernel.unpinnedLock.acquire();
-			System.arraycopy(data, offset + amount, memory, paddr, rest);
+			processor.writePhysical(paddr, data, offset + amount, rest);
 			VMKernel.invertedPT[ppn].pinned = false;
 			VMKernel.pinCount --;
 			VMKernel.pinCountLock.release();